@@ -28,7 +28,8 @@ import com.aqoleg.cat.data.Files;
 import com.aqoleg.cat.data.UriData;
 
 public class ActivityMain extends Activity implements View.OnClickListener, View.OnLongClickListener {
-    private static final String prefs = "prefs";
+    static final String prefs = "prefs";
+    static final String prefsRenderThread = "renderThread"; // draw the map on the render thread of the MapSurface
     private static final String prefsMap = "map";
     private static final String prefsZ = "zoom";
     private static final String prefsCenterLongitude = "centerLon";
@@ -110,7 +111,13 @@ public class ActivityMain extends Activity implements View.OnClickListener, View
             // load views, app
             setContentView(R.layout.activity_main);
             ActivityView activityView = new ActivityView(this);
-            ((FrameLayout) findViewById(R.id.mapView)).addView(activityView);
+            FrameLayout mapView = (FrameLayout) findViewById(R.id.mapView);
+            // the map is drawn by the activityView itself, if the render thread is off
+            boolean renderThread = sharedPrefs.getBoolean(prefsRenderThread, false);
+            if (renderThread && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                mapView.addView(new MapSurface(this, activityView)); // under the activityView
+            }
+            mapView.addView(activityView);
             findViewById(R.id.close).setOnClickListener(this);
             findViewById(R.id.localDistance).setOnClickListener(this);
             findViewById(R.id.zPlus).setOnClickListener(this);
@@ -1,5 +1,7 @@
 /*
 view with the map, handles touch events
+requests tiles ahead of the screen in the direction of dragging or moving of the visible location
+with MapSurface under this view, the map is recorded into the frame of the surface, not drawn in onDraw()
  */
 package com.aqoleg.cat;
 
@@ -15,6 +17,9 @@ import com.aqoleg.cat.data.Track;
 import java.util.Iterator;
 
 public class ActivityView extends View implements View.OnTouchListener {
+    private static final float dragPrefetchTime = 0.5f; // s
+    private static final float locationPrefetchTime = 30; // s
+
     private final Path path = new Path();
     private final Paint locationPaint = new Paint();
     private final Paint redTrackPaint = new Paint();
@@ -22,6 +27,7 @@ public class ActivityView extends View implements View.OnTouchListener {
     private final Paint textPaint = new Paint();
     private final String nearPointText;
     private final String farPointText;
+    private MapSurface surface; // or null if the map is drawn in onDraw()
     // layout constants
     private int xPxCenter;
     private int yPxCenter;
@@ -50,6 +56,14 @@ public class ActivityView extends View implements View.OnTouchListener {
     private float yPxTouchStart;
     private double xCenterTouchStart;
     private double yCenterTouchStart;
+    // prefetch
+    private long lastMoveTime;
+    private float xPxLastMove;
+    private float yPxLastMove;
+    private float xPxDragVelocity; // px/s of the center
+    private float yPxDragVelocity;
+    private double xLocationVelocity; // 1/s in the current projection
+    private double yLocationVelocity;
 
     @SuppressWarnings("deprecation")
     ActivityView(Context context) {
@@ -95,10 +109,9 @@ public class ActivityView extends View implements View.OnTouchListener {
     protected void onDraw(Canvas canvas) {
         try {
             super.onDraw(canvas);
-            drawTiles(canvas);
-            drawTracks(canvas);
-            drawPoint(canvas);
-            drawLocation(canvas);
+            if (surface == null) {
+                drawMap(canvas);
+            }
         } catch (Throwable t) {
             Files.getInstance().log(t);
         }
@@ -114,6 +127,11 @@ public class ActivityView extends View implements View.OnTouchListener {
                     yPxTouchStart = event.getY();
                     xCenterTouchStart = xCenter;
                     yCenterTouchStart = yCenter;
+                    lastMoveTime = touchStartTime;
+                    xPxLastMove = xPxTouchStart;
+                    yPxLastMove = yPxTouchStart;
+                    xPxDragVelocity = 0;
+                    yPxDragVelocity = 0;
                     return true;
                 case MotionEvent.ACTION_MOVE:
                     xCenter = xCenterTouchStart + ((double) (xPxTouchStart - event.getX()) / pxTotal);
@@ -128,6 +146,16 @@ public class ActivityView extends View implements View.OnTouchListener {
                     } else if (yCenter > 1) {
                         yCenter = 1;
                     }
+                    long time = SystemClock.elapsedRealtime();
+                    if (time > lastMoveTime) {
+                        // smoothed, center moves in the opposite direction
+                        float seconds = (time - lastMoveTime) / 1000f;
+                        xPxDragVelocity = (xPxDragVelocity + (xPxLastMove - event.getX()) / seconds) / 2;
+                        yPxDragVelocity = (yPxDragVelocity + (yPxLastMove - event.getY()) / seconds) / 2;
+                        lastMoveTime = time;
+                        xPxLastMove = event.getX();
+                        yPxLastMove = event.getY();
+                    }
                     isMoving = true;
                     draw();
                     return true;
@@ -192,6 +220,12 @@ public class ActivityView extends View implements View.OnTouchListener {
         this.yLocation = yLocation;
     }
 
+    // sets speed of the location in the current projection per second without drawing
+    public void setLocationVelocity(double xLocationVelocity, double yLocationVelocity) {
+        this.xLocationVelocity = xLocationVelocity;
+        this.yLocationVelocity = yLocationVelocity;
+    }
+
     // sets point coordinates in the current projection without drawing
     public void setPoint(double xPoint, double yPoint) {
         hasPoint = true;
@@ -214,9 +248,13 @@ public class ActivityView extends View implements View.OnTouchListener {
         xPxWidthTextPoint = textPaint.measureText(textPoint);
     }
 
-    // plans to onDraw() on the main thread
+    // plans to draw the frame on the render thread of the surface or onDraw() on the main thread
     public void draw() {
-        invalidate();
+        if (surface != null) {
+            surface.requestFrame();
+        } else {
+            invalidate();
+        }
     }
 
     public double getXCenter() {
@@ -257,6 +295,19 @@ public class ActivityView extends View implements View.OnTouchListener {
     }
 
 
+    void setSurface(MapSurface surface) {
+        this.surface = surface;
+    }
+
+    // draws the whole map into the canvas of this view or into the recorded frame of the surface, main thread only
+    void drawMap(Canvas canvas) {
+        drawTiles(canvas);
+        drawTracks(canvas);
+        drawPoint(canvas);
+        drawLocation(canvas);
+    }
+
+
     private void drawTiles(Canvas canvas) {
         // center tile
         int xTile = (int) (xCenter * totalTiles);
@@ -293,6 +344,8 @@ public class ActivityView extends View implements View.OnTouchListener {
                 drawTile(canvas, xTile, yTile, xPxLeft, yPxTop);
             }
         }
+        prefetchTiles();
+        App.readRequestedTiles();
     }
 
     private void drawTile(Canvas canvas, int xTile, int yTile, int xPxLeft, int yPxTop) {
@@ -311,9 +364,64 @@ public class ActivityView extends View implements View.OnTouchListener {
         if (yTile < 0 || yTile >= totalTiles) {
             return;
         }
-        Bitmap bitmap = App.getBitmap(yTile, xTile);
+        int xPxFromCenter = xPxLeft + 128 - xPxCenter;
+        int yPxFromCenter = yPxTop + 128 - yPxCenter;
+        Bitmap bitmap = App.getBitmap(yTile, xTile, xPxFromCenter * xPxFromCenter + yPxFromCenter * yPxFromCenter);
         if (bitmap != null) {
             canvas.drawBitmap(bitmap, xPxLeft, yPxTop, null);
+        } else {
+            App.drawPlaceholder(canvas, yTile, xTile, xPxLeft, yPxTop);
+        }
+    }
+
+    // requests tiles that will be visible soon, if the map is dragged or the visible location is moving
+    private void prefetchTiles() {
+        float xPxAhead, yPxAhead;
+        if (isMoving) {
+            xPxAhead = xPxDragVelocity * dragPrefetchTime;
+            yPxAhead = yPxDragVelocity * dragPrefetchTime;
+        } else {
+            double xDeltaFromCenter = xLocation - xCenter;
+            if (xDeltaFromCenter > 0.5) {
+                xDeltaFromCenter -= 1;
+            } else if (xDeltaFromCenter < -0.5) {
+                xDeltaFromCenter += 1;
+            }
+            double yDeltaFromCenter = yLocation - yCenter;
+            if (Math.abs(xDeltaFromCenter * pxTotal) > xPxCenter || Math.abs(yDeltaFromCenter * pxTotal) > yPxCenter) {
+                return; // location is not visible
+            }
+            xPxAhead = (float) (xLocationVelocity * pxTotal * locationPrefetchTime);
+            yPxAhead = (float) (yLocationVelocity * pxTotal * locationPrefetchTime);
+        }
+        if (Math.abs(xPxAhead) < 32 && Math.abs(yPxAhead) < 32) {
+            return;
+        }
+        xPxAhead = Math.max(-xPxRight, Math.min(xPxRight, xPxAhead));
+        yPxAhead = Math.max(-yPxBottom, Math.min(yPxBottom, yPxAhead));
+        // tiles of the screen and of the screen moved ahead
+        double xTileCenter = xCenter * totalTiles;
+        double yTileCenter = yCenter * totalTiles;
+        int xTileFirst = (int) Math.floor(xTileCenter + (Math.min(0, xPxAhead) - xPxCenter) / 256);
+        int xTileLast = (int) Math.floor(xTileCenter + (Math.max(0, xPxAhead) + xPxCenter) / 256);
+        int yTileFirst = Math.max(0, (int) Math.floor(yTileCenter + (Math.min(0, yPxAhead) - yPxCenter) / 256));
+        int yTileLast = (int) Math.floor(yTileCenter + (Math.max(0, yPxAhead) + yPxCenter) / 256);
+        yTileLast = Math.min(totalTiles - 1, yTileLast);
+        for (int yTile = yTileFirst; yTile <= yTileLast; yTile++) {
+            int yPxTop = yPxCenter + (int) Math.round((yTile - yTileCenter) * 256);
+            for (int xTile = xTileFirst; xTile <= xTileLast; xTile++) {
+                int xPxLeft = xPxCenter + (int) Math.round((xTile - xTileCenter) * 256);
+                if (xPxLeft >= -256 && xPxLeft <= xPxRight && yPxTop >= -256 && yPxTop <= yPxBottom) {
+                    continue; // visible
+                }
+                int xPxFromCenter = xPxLeft + 128 - xPxCenter;
+                int yPxFromCenter = yPxTop + 128 - yPxCenter;
+                App.prefetchTile(
+                        yTile,
+                        xTile & (totalTiles - 1),
+                        xPxFromCenter * xPxFromCenter + yPxFromCenter * yPxFromCenter
+                );
+            }
         }
     }
 
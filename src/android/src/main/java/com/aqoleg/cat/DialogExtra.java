@@ -17,6 +17,7 @@ import android.location.GpsStatus;
 import android.location.Location;
 import android.location.LocationManager;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.text.SpannableString;
 import android.text.Spanned;
@@ -31,6 +32,7 @@ import android.widget.TextView;
 import android.widget.Toast;
 import com.aqoleg.cat.app.App;
 import com.aqoleg.cat.data.Files;
+import com.aqoleg.cat.utils.Metrics;
 
 import java.util.Locale;
 
@@ -38,6 +40,19 @@ import static android.content.Context.LOCATION_SERVICE;
 
 @SuppressWarnings("deprecation")
 public class DialogExtra extends DialogFragment implements GpsStatus.Listener {
+    private static final int metricsInterval = 1000; // ms
+
+    private final Runnable metricsUpdate = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                updateMetrics();
+                getView().postDelayed(this, metricsInterval);
+            } catch (Throwable t) {
+                Files.getInstance().log(t);
+            }
+        }
+    };
     private LocationManager locationManager;
     private GpsStatus gpsStatus;
     private SatellitesView satellitesView;
@@ -122,6 +137,43 @@ public class DialogExtra extends DialogFragment implements GpsStatus.Listener {
             textView.setText(span);
             textView.setMovementMethod(LinkMovementMethod.getInstance());
 
+            textView = view.findViewById(R.id.download);
+            textView.setText(getDownloadSpan());
+            textView.setMovementMethod(LinkMovementMethod.getInstance());
+
+            textView = view.findViewById(R.id.export);
+            textView.setText(getExportSpan());
+            textView.setMovementMethod(LinkMovementMethod.getInstance());
+
+            String mapName = App.getMapName();
+            span = new SpannableString(String.format(getString(R.string.recompress), mapName));
+            int start = span.toString().indexOf(mapName);
+            span.setSpan(
+                    new Clickable("recompressMap"),
+                    start,
+                    start + mapName.length(),
+                    Spanned.SPAN_EXCLUSIVE_EXCLUSIVE
+            );
+            textView = view.findViewById(R.id.recompress);
+            textView.setText(span);
+            textView.setMovementMethod(LinkMovementMethod.getInstance());
+
+            textView = view.findViewById(R.id.trackDownload);
+            if (App.getOpenedTrack() != null) {
+                textView.setText(getTrackDownloadSpan());
+                textView.setMovementMethod(LinkMovementMethod.getInstance());
+            } else {
+                textView.setVisibility(View.GONE);
+            }
+
+            textView = view.findViewById(R.id.renderThread);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                textView.setText(getRenderThreadSpan());
+                textView.setMovementMethod(LinkMovementMethod.getInstance());
+            } else {
+                textView.setVisibility(View.GONE);
+            }
+
             span = new SpannableString(String.format(getString(R.string.visit), "cat.aqoleg.com"));
             span.setSpan(new Clickable("openWeb"), span.length() - 14, span.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
             textView = view.findViewById(R.id.website);
@@ -145,8 +197,8 @@ public class DialogExtra extends DialogFragment implements GpsStatus.Listener {
             );
             getDialog().getWindow().setGravity(Gravity.RIGHT | Gravity.BOTTOM);
             locationManager.addGpsStatusListener(this);
-            String text = String.format(getString(R.string.cacheText), App.getTileCacheSize(), App.getTrackCacheSize());
-            ((TextView) getView().findViewById(R.id.cache)).setText(text);
+            ((TextView) getView().findViewById(R.id.metrics)).setMovementMethod(LinkMovementMethod.getInstance());
+            metricsUpdate.run();
             App.registerForUpdate(this);
         } catch (Throwable t) {
             Files.getInstance().log(t);
@@ -159,6 +211,7 @@ public class DialogExtra extends DialogFragment implements GpsStatus.Listener {
             super.onStop();
             locationManager.removeGpsStatusListener(this);
             gpsStatus = null;
+            getView().removeCallbacks(metricsUpdate);
             App.unregisterForUpdates();
         } catch (Throwable t) {
             Files.getInstance().log(t);
@@ -176,6 +229,45 @@ public class DialogExtra extends DialogFragment implements GpsStatus.Listener {
     }
 
 
+    public void showTrackDownloadEstimate(long tiles, long missingTiles, long missingBytes) {
+        String start = getString(R.string.start);
+        SpannableString span = new SpannableString(String.format(
+                Locale.ENGLISH,
+                getString(R.string.trackDownloadEstimate),
+                tiles,
+                missingTiles,
+                missingBytes / 1048576f,
+                start
+        ));
+        span.setSpan(
+                new Clickable("startTrackDownload"),
+                span.length() - start.length(),
+                span.length(),
+                Spanned.SPAN_EXCLUSIVE_EXCLUSIVE
+        );
+        ((TextView) getView().findViewById(R.id.trackDownload)).setText(span);
+    }
+
+    // packName - name of the new pack map or null
+    public void showPackExport(String packName) {
+        TextView textView = getView().findViewById(R.id.export);
+        if (packName == null) {
+            textView.setText(R.string.notExported);
+        } else {
+            textView.setText(String.format(getString(R.string.exported), packName));
+        }
+    }
+
+    // savedBytes - or -1 if tiles of the map cannot be changed
+    public void showRecompression(long savedBytes) {
+        TextView textView = getView().findViewById(R.id.recompress);
+        if (savedBytes < 0) {
+            textView.setText(R.string.notRecompressed);
+        } else {
+            textView.setText(String.format(Locale.ENGLISH, getString(R.string.recompressed), savedBytes / 1048576f));
+        }
+    }
+
     public void updateLocation(Location location) {
         String text = String.format(
                 Locale.ENGLISH,
@@ -190,6 +282,105 @@ public class DialogExtra extends DialogFragment implements GpsStatus.Listener {
     }
 
 
+    // shows cache size and metrics of the tile pipeline
+    private void updateMetrics() {
+        String text = String.format(
+                Locale.ENGLISH,
+                getString(R.string.cacheText),
+                App.getTileCacheSize(),
+                App.getTileCacheBytes() / 1048576f,
+                App.getTileCacheMaxBytes() / 1048576f,
+                App.getTrackCacheSize()
+        );
+        ((TextView) getView().findViewById(R.id.cache)).setText(text);
+        String save = getString(R.string.saveMetrics);
+        SpannableString span = new SpannableString(Metrics.toText() + save);
+        span.setSpan(
+                new Clickable("saveMetrics"),
+                span.length() - save.length(),
+                span.length(),
+                Spanned.SPAN_EXCLUSIVE_EXCLUSIVE
+        );
+        ((TextView) getView().findViewById(R.id.metrics)).setText(span);
+    }
+
+    private SpannableString getDownloadSpan() {
+        SpannableString span;
+        if (App.isDownloading()) {
+            String stop = getString(R.string.stop);
+            String progress = App.getDownloadProgress(getString(R.string.downloadProgress));
+            span = new SpannableString(String.format(getString(R.string.downloading), progress, stop));
+            span.setSpan(
+                    new Clickable("stopDownload"),
+                    span.length() - stop.length(),
+                    span.length(),
+                    Spanned.SPAN_EXCLUSIVE_EXCLUSIVE
+            );
+        } else {
+            String area = String.format(
+                    getString(R.string.downloadArea),
+                    App.getZ() + 1,
+                    App.getRegionDownloadMaxZ() + 1
+            );
+            span = new SpannableString(String.format(getString(R.string.download), area));
+            span.setSpan(
+                    new Clickable("startDownload"),
+                    span.length() - area.length(),
+                    span.length(),
+                    Spanned.SPAN_EXCLUSIVE_EXCLUSIVE
+            );
+        }
+        return span;
+    }
+
+    private SpannableString getExportSpan() {
+        String area = String.format(
+                getString(R.string.downloadArea),
+                App.getZ() + 1,
+                App.getRegionDownloadMaxZ() + 1
+        );
+        SpannableString span = new SpannableString(String.format(getString(R.string.export), area));
+        int start = span.toString().indexOf(area);
+        span.setSpan(new Clickable("exportPack"), start, start + area.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        return span;
+    }
+
+    private SpannableString getRenderThreadSpan() {
+        String thread = getString(isRenderThread() ? R.string.renderThreadName : R.string.mainThread);
+        SpannableString span = new SpannableString(String.format(getString(R.string.renderThread), thread));
+        int start = span.toString().indexOf(thread);
+        span.setSpan(
+                new Clickable("switchRenderThread"),
+                start,
+                start + thread.length(),
+                Spanned.SPAN_EXCLUSIVE_EXCLUSIVE
+        );
+        return span;
+    }
+
+    private boolean isRenderThread() {
+        return getActivity()
+                .getSharedPreferences(ActivityMain.prefs, Context.MODE_PRIVATE)
+                .getBoolean(ActivityMain.prefsRenderThread, false);
+    }
+
+    private SpannableString getTrackDownloadSpan() {
+        String track = String.format(
+                getString(R.string.trackDownloadArea),
+                App.getZ() + 1,
+                App.getTrackDownloadMaxZ() + 1,
+                App.getTrackDownloadDistance()
+        );
+        SpannableString span = new SpannableString(String.format(getString(R.string.download), track));
+        span.setSpan(
+                new Clickable("estimateTrackDownload"),
+                span.length() - track.length(),
+                span.length(),
+                Spanned.SPAN_EXCLUSIVE_EXCLUSIVE
+        );
+        return span;
+    }
+
     private void onSpanClick(String id) {
         switch (id) {
             case "copyTrack":
@@ -283,6 +474,56 @@ public class DialogExtra extends DialogFragment implements GpsStatus.Listener {
                     ).show();
                 }
                 break;
+            case "startDownload":
+                if (!App.startRegionDownload()) {
+                    Toast.makeText(getActivity().getApplicationContext(), R.string.noUrl, Toast.LENGTH_SHORT).show();
+                }
+                ((TextView) getView().findViewById(R.id.download)).setText(getDownloadSpan());
+                break;
+            case "estimateTrackDownload":
+                if (App.estimateTrackDownload()) {
+                    ((TextView) getView().findViewById(R.id.trackDownload)).setText(R.string.countingTiles);
+                } else {
+                    Toast.makeText(getActivity().getApplicationContext(), R.string.noUrl, Toast.LENGTH_SHORT).show();
+                }
+                break;
+            case "startTrackDownload":
+                App.startTrackDownload();
+                ((TextView) getView().findViewById(R.id.trackDownload)).setText(getTrackDownloadSpan());
+                ((TextView) getView().findViewById(R.id.download)).setText(getDownloadSpan());
+                break;
+            case "exportPack":
+                App.exportPack();
+                ((TextView) getView().findViewById(R.id.export)).setText(R.string.exporting);
+                break;
+            case "recompressMap":
+                if (App.recompressMap()) {
+                    ((TextView) getView().findViewById(R.id.recompress)).setText(R.string.recompressing);
+                } else {
+                    ((TextView) getView().findViewById(R.id.recompress)).setText(R.string.notRecompressed);
+                }
+                break;
+            case "saveMetrics":
+                boolean saved = Files.getInstance().saveMetrics(getString(R.string.version) + '\n' + Metrics.toText());
+                Toast.makeText(
+                        getActivity().getApplicationContext(),
+                        saved ? R.string.metricsSaved : R.string.metricsNotSaved,
+                        Toast.LENGTH_SHORT
+                ).show();
+                break;
+            case "switchRenderThread":
+                getActivity()
+                        .getSharedPreferences(ActivityMain.prefs, Context.MODE_PRIVATE)
+                        .edit()
+                        .putBoolean(ActivityMain.prefsRenderThread, !isRenderThread())
+                        .apply();
+                dismiss();
+                getActivity().recreate(); // the surface is added in onCreate()
+                break;
+            case "stopDownload":
+                App.stopDownload();
+                ((TextView) getView().findViewById(R.id.download)).setText(getDownloadSpan());
+                break;
             case "openWeb":
                 intent = new Intent(Intent.ACTION_VIEW, Uri.parse("https://cat.aqoleg.com"));
                 if (intent.resolveActivity(getActivity().getPackageManager()) != null) {
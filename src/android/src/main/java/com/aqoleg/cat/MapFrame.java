@@ -0,0 +1,158 @@
+/*
+canvas, that records the frame of the map instead of drawing it, the recorded frame can be drawn on other thread
+records only operations used by ActivityView and Tiles, bitmaps and paints are kept, rects and paths are copied
+bitmaps of the tiles must not be reused until the frame is drawn, see BitmapPool
+records on the main thread, operations are reused by the next frames
+ */
+package com.aqoleg.cat;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Rect;
+
+import java.util.ArrayList;
+
+class MapFrame extends Canvas {
+    private static final int typeBitmap = 0;
+    private static final int typeScaledBitmap = 1;
+    private static final int typePath = 2;
+    private static final int typeCircle = 3;
+    private static final int typeLine = 4;
+    private static final int typeText = 5;
+
+    private final ArrayList<Operation> operations = new ArrayList<>();
+    private int size;
+    private Runnable onFinish; // allows to reuse bitmaps of the tiles
+
+
+    @Override
+    public void drawBitmap(Bitmap bitmap, float left, float top, Paint paint) {
+        Operation operation = add(typeBitmap, paint);
+        operation.bitmap = bitmap;
+        operation.x = left;
+        operation.y = top;
+    }
+
+    @Override
+    public void drawBitmap(Bitmap bitmap, Rect src, Rect dst, Paint paint) {
+        Operation operation = add(typeScaledBitmap, paint);
+        operation.bitmap = bitmap;
+        operation.hasSrc = src != null;
+        if (src != null) {
+            operation.src.set(src);
+        }
+        operation.dst.set(dst);
+    }
+
+    @Override
+    public void drawPath(Path path, Paint paint) {
+        add(typePath, paint).path.set(path);
+    }
+
+    @Override
+    public void drawCircle(float cx, float cy, float radius, Paint paint) {
+        Operation operation = add(typeCircle, paint);
+        operation.x = cx;
+        operation.y = cy;
+        operation.x2 = radius;
+    }
+
+    @Override
+    public void drawLine(float startX, float startY, float stopX, float stopY, Paint paint) {
+        Operation operation = add(typeLine, paint);
+        operation.x = startX;
+        operation.y = startY;
+        operation.x2 = stopX;
+        operation.y2 = stopY;
+    }
+
+    @Override
+    public void drawText(String text, float x, float y, Paint paint) {
+        Operation operation = add(typeText, paint);
+        operation.text = text;
+        operation.x = x;
+        operation.y = y;
+    }
+
+
+    // clears the previous frame, onFinish - runs after this frame has been drawn or dropped
+    void start(Runnable onFinish) {
+        for (int i = 0; i < size; i++) {
+            operations.get(i).clear();
+        }
+        size = 0;
+        this.onFinish = onFinish;
+    }
+
+    // draws the recorded frame on any thread, the frame must not be recorded at the same time
+    void drawTo(Canvas canvas) {
+        for (int i = 0; i < size; i++) {
+            operations.get(i).drawTo(canvas);
+        }
+    }
+
+    // call after the frame has been drawn or instead of drawing, frames must be finished in the order of recording
+    void finish() {
+        if (onFinish != null) {
+            onFinish.run();
+            onFinish = null;
+        }
+    }
+
+
+    private Operation add(int type, Paint paint) {
+        if (size == operations.size()) {
+            operations.add(new Operation());
+        }
+        Operation operation = operations.get(size++);
+        operation.type = type;
+        operation.paint = paint;
+        return operation;
+    }
+
+
+    private static class Operation {
+        private final Rect src = new Rect();
+        private final Rect dst = new Rect();
+        private final Path path = new Path();
+        private int type;
+        private Paint paint; // shared, must not be changed after creation
+        private Bitmap bitmap;
+        private boolean hasSrc;
+        private float x, y, x2, y2; // x2 - radius of the circle
+        private String text;
+
+        private void drawTo(Canvas canvas) {
+            switch (type) {
+                case typeBitmap:
+                    canvas.drawBitmap(bitmap, x, y, paint);
+                    break;
+                case typeScaledBitmap:
+                    canvas.drawBitmap(bitmap, hasSrc ? src : null, dst, paint);
+                    break;
+                case typePath:
+                    canvas.drawPath(path, paint);
+                    break;
+                case typeCircle:
+                    canvas.drawCircle(x, y, x2, paint);
+                    break;
+                case typeLine:
+                    canvas.drawLine(x, y, x2, y2, paint);
+                    break;
+                case typeText:
+                    canvas.drawText(text, x, y, paint);
+                    break;
+            }
+        }
+
+        // drops references to the bitmap and the text of the previous frame
+        private void clear() {
+            paint = null;
+            bitmap = null;
+            text = null;
+            path.rewind();
+        }
+    }
+}
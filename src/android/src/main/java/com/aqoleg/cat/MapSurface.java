@@ -0,0 +1,178 @@
+/*
+surface under the ActivityView, the map is drawn on the render thread instead of the main thread, off by default
+requests of drawing are coalesced, at most one frame for each vsync
+on vsync the main thread records the frame into MapFrame, it reads the state of the view and the app
+the render thread only draws the recorded frame into the back buffer of the surface and posts it
+the frame, that has not been drawn yet, is recorded again, bitmaps are not reused while their frame is not drawn
+ */
+package com.aqoleg.cat;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.Choreographer;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+import com.aqoleg.cat.app.App;
+import com.aqoleg.cat.data.Files;
+
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+class MapSurface extends SurfaceView implements SurfaceHolder.Callback, Choreographer.FrameCallback {
+    private final ActivityView activityView;
+    private final Object surfaceLock = new Object(); // held while drawing the frame
+    private final Runnable drawFrame = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                drawFrame();
+            } catch (Throwable t) {
+                Files.getInstance().log(t);
+            }
+        }
+    };
+
+    private HandlerThread thread; // main thread only
+    private Handler handler; // of the render thread, main thread only
+    private boolean frameRequested; // main thread only
+    private MapFrame pendingFrame; // recorded and not drawn yet, synchronized
+    private MapFrame freeFrame; // drawn, synchronized
+    private boolean hasSurface; // synchronized on surfaceLock
+
+    MapSurface(Context context, ActivityView activityView) {
+        super(context);
+        this.activityView = activityView;
+        activityView.setSurface(this);
+        getHolder().addCallback(this);
+    }
+
+
+    @Override
+    public void surfaceCreated(SurfaceHolder holder) {
+        try {
+            thread = new HandlerThread("MapRender");
+            thread.start();
+            handler = new Handler(thread.getLooper());
+            synchronized (surfaceLock) {
+                hasSurface = true;
+            }
+            requestFrame();
+        } catch (Throwable t) {
+            Files.getInstance().log(t);
+        }
+    }
+
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+        try {
+            requestFrame();
+        } catch (Throwable t) {
+            Files.getInstance().log(t);
+        }
+    }
+
+    // waits for the frame that is drawing now, the surface cannot be used after return
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        try {
+            if (frameRequested) {
+                Choreographer.getInstance().removeFrameCallback(this);
+                frameRequested = false;
+            }
+            handler = null;
+            synchronized (surfaceLock) {
+                hasSurface = false;
+            }
+            thread.quit();
+            thread = null;
+            synchronized (this) {
+                if (pendingFrame != null) { // will not be drawn
+                    pendingFrame.finish();
+                    freeFrame = pendingFrame;
+                    pendingFrame = null;
+                }
+            }
+        } catch (Throwable t) {
+            Files.getInstance().log(t);
+        }
+    }
+
+    // records the frame on the main thread
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        try {
+            frameRequested = false;
+            if (handler == null) {
+                return;
+            }
+            MapFrame frame;
+            synchronized (this) {
+                frame = pendingFrame; // not drawn yet, record it again
+                pendingFrame = null;
+                if (frame == null) {
+                    frame = freeFrame;
+                    freeFrame = null;
+                }
+            }
+            if (frame == null) {
+                frame = new MapFrame(); // the other one is drawing now
+            }
+            frame.start(App.startFrame());
+            activityView.drawMap(frame);
+            synchronized (this) {
+                pendingFrame = frame;
+            }
+            handler.post(drawFrame);
+        } catch (Throwable t) {
+            Files.getInstance().log(t);
+        }
+    }
+
+
+    // plans to record the frame on the next vsync, main thread only, does nothing if the frame is already planned
+    void requestFrame() {
+        if (frameRequested || handler == null) {
+            return;
+        }
+        frameRequested = true;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+
+    // on the render thread
+    private void drawFrame() {
+        MapFrame frame;
+        synchronized (this) {
+            frame = pendingFrame;
+            pendingFrame = null;
+        }
+        if (frame == null) { // has been drawn by the previous post
+            return;
+        }
+        try {
+            synchronized (surfaceLock) {
+                if (!hasSurface) {
+                    return;
+                }
+                Canvas canvas = getHolder().lockCanvas();
+                if (canvas == null) {
+                    return;
+                }
+                try {
+                    canvas.drawColor(Color.BLACK); // the back buffer keeps an old frame
+                    frame.drawTo(canvas);
+                } finally {
+                    getHolder().unlockCanvasAndPost(canvas);
+                }
+            }
+        } finally {
+            frame.finish();
+            synchronized (this) {
+                freeFrame = frame;
+            }
+        }
+    }
+}
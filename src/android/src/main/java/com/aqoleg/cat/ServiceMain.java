@@ -1,5 +1,6 @@
 /*
 single foreground service
+shows progress of the download job in the notification, updates it once a second only while the job is running
 */
 package com.aqoleg.cat;
 
@@ -11,12 +12,16 @@ import android.location.LocationListener;
 import android.location.LocationManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
 import com.aqoleg.cat.app.App;
 import com.aqoleg.cat.data.Files;
 
-public class ServiceMain extends Service implements LocationListener {
+public class ServiceMain extends Service implements LocationListener, Runnable {
+    private final Handler handler = new Handler();
     private LocationManager locationManager;
+    private Notification.Builder builder;
+    private String progress; // shown progress of the download job or null
 
     @SuppressWarnings("deprecation")
     @Override
@@ -24,7 +29,7 @@ public class ServiceMain extends Service implements LocationListener {
         try {
             super.onCreate();
             Intent startActivityIntent = new Intent(getApplicationContext(), ActivityMain.class);
-            Notification.Builder builder = new Notification.Builder(getApplicationContext())
+            builder = new Notification.Builder(getApplicationContext())
                     .setSmallIcon(R.drawable.notification)
                     .setLargeIcon(BitmapFactory.decodeResource(getResources(), R.mipmap.icon))
                     .setContentTitle(getString(R.string.serviceDescription))
@@ -41,6 +46,7 @@ public class ServiceMain extends Service implements LocationListener {
             locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 0, 0, this);
 
             App.beginTrackLog();
+            App.resumeDownload(this);
         } catch (Throwable t) {
             Files.getInstance().log(t);
         }
@@ -60,13 +66,35 @@ public class ServiceMain extends Service implements LocationListener {
     public void onDestroy() {
         try {
             super.onDestroy();
+            handler.removeCallbacks(this);
             locationManager.removeUpdates(this);
+            App.pauseDownload();
             App.endTrackLog();
         } catch (Throwable t) {
             Files.getInstance().log(t);
         }
     }
 
+    // updates the notification, then once a second while the job is downloading
+    @SuppressWarnings("deprecation")
+    @Override
+    public void run() {
+        try {
+            String progress = App.getDownloadProgress(getString(R.string.downloadProgress));
+            if (progress == null ? this.progress != null : !progress.equals(this.progress)) {
+                this.progress = progress;
+                builder.setContentText(progress);
+                ((NotificationManager) getSystemService(NOTIFICATION_SERVICE)).notify(1, builder.getNotification());
+            }
+            if (App.isDownloading()) {
+                handler.postDelayed(this, 1000);
+            }
+        } catch (Throwable t) {
+            Files.getInstance().log(t);
+        }
+    }
+
+
     @Override
     public void onLocationChanged(Location location) {
         try {
@@ -87,4 +115,11 @@ public class ServiceMain extends Service implements LocationListener {
     @Override
     public void onProviderDisabled(String provider) {
     }
-}
\ No newline at end of file
+
+
+    // call when the download job starts, starts updates of the notification
+    public void showDownload() {
+        handler.removeCallbacks(this);
+        handler.post(this);
+    }
+}
@@ -8,10 +8,12 @@ x, y - tiles number, tile(0, 0) is the top left tile, from 0 to (2^z - 1)
 package com.aqoleg.cat.app;
 
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
 import android.location.Location;
 import com.aqoleg.cat.ActivityMain;
 import com.aqoleg.cat.ActivityView;
 import com.aqoleg.cat.DialogExtra;
+import com.aqoleg.cat.ServiceMain;
 import com.aqoleg.cat.data.Files;
 import com.aqoleg.cat.data.Map;
 import com.aqoleg.cat.data.Track;
@@ -22,6 +24,12 @@ import java.util.ArrayList;
 import java.util.Iterator;
 
 public class App {
+    private static final float tileCacheHeapPart = 0.25f; // part of the heap for the tile cache
+    private static final int downloadConnectionsPerHost = 4;
+    private static final int regionDownloadZooms = 4; // number of zooms above the current one to download the area
+    private static final int trackDownloadDistance = 500; // m from the track to download tiles
+    private static final double equator = 40075016.686; // m
+
     private static Location lastLocation; // non-filtered last update or null at start
     // service
     private static long lastUpdateTime; // unix timestamp
@@ -30,6 +38,8 @@ public class App {
     private static Track.Current currentTrack;
     private static float totalDistance;
     private static float localDistance;
+    private static DownloadJob downloadJob; // null if there is no job
+    private static ServiceMain serviceMain; // shows progress of the job, null if the service is not running
     // activity
     private static ActivityMain activityMain;
     private static ActivityView activityView;
@@ -45,6 +55,9 @@ public class App {
     private static int tracksPosition;
     // extra
     private static DialogExtra dialogExtra;
+    private static TrackDownload.Estimator trackDownloadEstimator; // the last one or null
+    private static PackExport packExport; // running export or null
+    private static Recompression recompression; // running recompression or null
 
     // service
 
@@ -120,6 +133,14 @@ public class App {
                 }
                 toRefresh = true;
             }
+            if (location.hasSpeed() && location.hasBearing() && location.getSpeed() > 1) {
+                // in the projection coordinates, scale is the same for both axes
+                double scale = location.getSpeed() / (equator * Math.cos(Math.toRadians(location.getLatitude())));
+                double bearing = Math.toRadians(location.getBearing());
+                activityView.setLocationVelocity(Math.sin(bearing) * scale, -Math.cos(bearing) * scale);
+            } else {
+                activityView.setLocationVelocity(0, 0);
+            }
         }
 
         if (toRefresh && isVisible) {
@@ -130,6 +151,30 @@ public class App {
         }
     }
 
+    // call once at start service, continues saved download job
+    public static void resumeDownload(ServiceMain serviceMain) {
+        App.serviceMain = serviceMain;
+        if (downloadJob == null) {
+            downloadJob = DownloadJob.resume();
+        }
+        showDownload();
+    }
+
+    // returns progress of the download job or null
+    // format - map name, processed tiles, total tiles, tiles/s, KB/s, failed tiles
+    public static String getDownloadProgress(String format) {
+        return downloadJob == null ? null : downloadJob.getProgress(format);
+    }
+
+    // call once at destroy service, saves download job to resume later
+    public static void pauseDownload() {
+        serviceMain = null;
+        if (downloadJob != null) {
+            downloadJob.stop(true);
+            downloadJob = null;
+        }
+    }
+
     // call once at destroy service
     public static void endTrackLog() {
         lastUpdateTime = 0;
@@ -143,6 +188,13 @@ public class App {
         localDistance = 0;
     }
 
+    // updates the progress in the notification while the job is running, if the service is running
+    private static void showDownload() {
+        if (serviceMain != null) {
+            serviceMain.showDownload();
+        }
+    }
+
     // activityMain
 
     // call start() after this
@@ -197,7 +249,8 @@ public class App {
 
         map = Map.load(mapName);
         App.z = z;
-        tiles = new Tiles(activityMain.getWindowManager().getDefaultDisplay());
+        tiles = new Tiles(activityMain, tileCacheHeapPart);
+        Downloads.getInstance().setMaxConnectionsPerHost(downloadConnectionsPerHost);
         App.openedTrack = Track.open(openedTrack);
         App.selectedTracks = Tracks.load(selectedTracks);
         if (hasPoint) {
@@ -294,7 +347,7 @@ public class App {
         App.isVisible = isVisible;
     }
 
-    // clear resources
+    // clear resources, saves the use of tiles and deletes unused ones in the background
     public static void unload() {
         activityMain = null;
         activityView = null;
@@ -307,6 +360,7 @@ public class App {
         selectedTracks = null;
         pointLocation = null;
         isVisible = false;
+        TileEviction.start();
     }
 
     public static void clearLocalDistance() {
@@ -416,8 +470,29 @@ public class App {
         );
     }
 
-    public static Bitmap getBitmap(int y, int x) {
-        return tiles.getBitmap(map, z, y, x);
+    // priority - lower is more important
+    public static Bitmap getBitmap(int y, int x, int priority) {
+        return tiles.getBitmap(map, z, y, x, priority);
+    }
+
+    // draws tile that is not ready yet using cached tiles of other zooms, returns false if nothing has been drawn
+    public static boolean drawPlaceholder(Canvas canvas, int y, int x, int xPxLeft, int yPxTop) {
+        return tiles.drawPlaceholder(canvas, map, z, y, x, xPxLeft, yPxTop);
+    }
+
+    // requests tile ahead of the screen, priority - lower is more important, less than 2^26
+    public static void prefetchTile(int y, int x, int priority) {
+        tiles.prefetch(map, z, y, x, priority);
+    }
+
+    // call after all getBitmap() and prefetchTile() of the drawing pass
+    public static void readRequestedTiles() {
+        tiles.readRequested();
+    }
+
+    // call before recording the frame of the map surface, run returned Runnable after the frame has been drawn
+    public static Runnable startFrame() {
+        return tiles.startFrame();
     }
 
     public static Track getOpenedTrackIterator() {
@@ -509,13 +584,127 @@ public class App {
     }
 
     public static int getTileCacheSize() {
-        return tiles.cacheSize;
+        return tiles.getCacheSize();
+    }
+
+    public static long getTileCacheBytes() {
+        return tiles.getCacheBytes();
+    }
+
+    public static long getTileCacheMaxBytes() {
+        return tiles.getCacheMaxBytes();
     }
 
     public static int getTrackCacheSize() {
         return selectedTracks.getCacheSize();
     }
 
+    public static boolean isDownloading() {
+        return downloadJob != null && !downloadJob.isFinished();
+    }
+
+    // returns the last zoom of the region download started from this zoom
+    public static int getRegionDownloadMaxZ() {
+        return Math.min(17, z + regionDownloadZooms);
+    }
+
+    // downloads visible area of the map with zooms from the current to getRegionDownloadMaxZ()
+    // replaces the previous download job, returns false if the map cannot be downloaded
+    public static boolean startRegionDownload() {
+        stopDownload();
+        ActivityView.Boundaries boundaries = activityView.getBoundaries();
+        downloadJob = RegionDownload.start(
+                map,
+                z,
+                getRegionDownloadMaxZ(),
+                boundaries.xLeft,
+                boundaries.xRight,
+                boundaries.yTop,
+                boundaries.yBottom
+        );
+        showDownload();
+        return downloadJob != null;
+    }
+
+    // returns distance in m from the opened track, tiles within it will be downloaded
+    public static int getTrackDownloadDistance() {
+        return trackDownloadDistance;
+    }
+
+    // returns the last zoom of the track download
+    public static int getTrackDownloadMaxZ() {
+        return 17;
+    }
+
+    // counts tiles near the opened track with zooms from the current to getTrackDownloadMaxZ(), then calls dialogExtra
+    // returns false if there is no opened track or the map cannot be downloaded
+    public static boolean estimateTrackDownload() {
+        if (openedTrack == null || map.getUrl(0, 0, 0) == null) {
+            return false;
+        }
+        if (trackDownloadEstimator != null) {
+            trackDownloadEstimator.cancel(true);
+        }
+        trackDownloadEstimator = new TrackDownload.Estimator(
+                map,
+                z,
+                getTrackDownloadMaxZ(),
+                openedTrack,
+                trackDownloadDistance
+        );
+        return true;
+    }
+
+    // downloads tiles of the last estimate, replaces the previous download job
+    public static void startTrackDownload() {
+        if (trackDownloadEstimator == null) {
+            return;
+        }
+        stopDownload();
+        downloadJob = TrackDownload.start(trackDownloadEstimator);
+        trackDownloadEstimator = null;
+        showDownload();
+    }
+
+    public static void stopDownload() {
+        if (downloadJob != null) {
+            downloadJob.stop(false);
+            downloadJob = null;
+            showDownload();
+        }
+    }
+
+    // exports saved tiles of the visible area with zooms from the current to getRegionDownloadMaxZ() in the new pack
+    // then calls dialogExtra
+    public static void exportPack() {
+        if (packExport != null) {
+            packExport.cancel(true);
+        }
+        ActivityView.Boundaries boundaries = activityView.getBoundaries();
+        packExport = new PackExport(
+                map,
+                z,
+                getRegionDownloadMaxZ(),
+                boundaries.xLeft,
+                boundaries.xRight,
+                boundaries.yTop,
+                boundaries.yBottom
+        );
+    }
+
+    // transcodes saved tiles of the current map in webp, then calls dialogExtra
+    // returns false if webp is not supported
+    public static boolean recompressMap() {
+        if (!Webp.isSupported()) {
+            return false;
+        }
+        if (recompression != null) {
+            recompression.cancel(true);
+        }
+        recompression = new Recompression(map);
+        return true;
+    }
+
     public static String getCenterTilePath() {
         return Files.getInstance().getTilePathOrName(
                 map.name,
@@ -542,6 +731,33 @@ public class App {
         }
     }
 
+    static void finishTrackDownloadEstimate(TrackDownload.Estimator estimator) {
+        if (estimator == trackDownloadEstimator && dialogExtra != null) {
+            dialogExtra.showTrackDownloadEstimate(estimator.tiles, estimator.missingTiles, estimator.missingBytes);
+        }
+    }
+
+    static void finishPackExport(PackExport export, String packName) {
+        if (export != packExport) {
+            return;
+        }
+        packExport = null;
+        if (dialogExtra != null) {
+            dialogExtra.showPackExport(packName);
+        }
+    }
+
+    // savedBytes - or -1 if tiles of the map cannot be changed
+    static void finishRecompression(Recompression recompression, long savedBytes) {
+        if (recompression != App.recompression) {
+            return;
+        }
+        App.recompression = null;
+        if (dialogExtra != null) {
+            dialogExtra.showRecompression(savedBytes);
+        }
+    }
+
     static void centerOnTrack(Track track) {
         if (activityView != null) {
             double x = track.getStartX();
@@ -0,0 +1,252 @@
+/*
+recycled 256x256 tile bitmaps for BitmapFactory.Options.inBitmap, thread-safe
+filled with bitmaps of removed tiles
+bitmaps removed while a frame of the map surface can still draw them are kept aside until this frame is drawn
+decoded parts of the tiles for the fallback are kept here too, a few of them for all threads
+ */
+package com.aqoleg.cat.app;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+class BitmapPool {
+    private static final int maxParts = 4;
+    private static final Paint filterPaint = new Paint(Paint.FILTER_BITMAP_FLAG); // read only, shared by threads
+    private static final ThreadLocal<Scaler> scalers = new ThreadLocal<Scaler>() {
+        @Override
+        protected Scaler initialValue() {
+            return new Scaler();
+        }
+    };
+
+    private final Bitmap[] bitmaps;
+    private final ArrayList<Bitmap> parts = new ArrayList<>(); // decoded parts of the tiles of different sizes
+    private final ArrayList<Bitmap> deferred = new ArrayList<>(); // removed while frames are drawing
+    private final ArrayList<Long> deferredFrames = new ArrayList<>(); // the last frame that can draw the bitmap
+    private int size;
+    private long recordedFrame; // the last frame that has been recorded
+    private long drawnFrame; // all frames up to it have been drawn or dropped
+
+    BitmapPool(int maxSize) {
+        bitmaps = new Bitmap[maxSize];
+    }
+
+
+    // returns reusable bitmap or null
+    synchronized Bitmap get() {
+        if (size == 0) {
+            return null;
+        }
+        Bitmap bitmap = bitmaps[--size];
+        bitmaps[size] = null;
+        return bitmap;
+    }
+
+    // returns reusable bitmap or new bitmap
+    Bitmap getOrCreate() {
+        Bitmap bitmap = get();
+        if (bitmap == null) {
+            bitmap = Bitmap.createBitmap(256, 256, Bitmap.Config.RGB_565);
+        }
+        return bitmap;
+    }
+
+    // keeps bitmap, if it is a mutable tile bitmap and pool is not full, bitmap must not be used after that
+    // if the recorded frame can draw it, bitmap is not reused until this frame is drawn
+    synchronized void put(Bitmap bitmap) {
+        if (bitmap != null && recordedFrame != drawnFrame) {
+            if (deferred.size() < bitmaps.length) { // others are left to the gc
+                deferred.add(bitmap);
+                deferredFrames.add(recordedFrame);
+            }
+            return;
+        }
+        putNow(bitmap);
+    }
+
+    // call on the main thread before recording the frame with bitmaps of the tiles, returns number of the frame
+    synchronized long startFrame() {
+        return ++recordedFrame;
+    }
+
+    // call from any thread when the frame has been drawn or dropped, frames must be finished in order
+    synchronized void finishFrame(long frame) {
+        if (frame <= drawnFrame) {
+            return;
+        }
+        drawnFrame = frame;
+        for (int i = deferred.size() - 1; i >= 0; i--) {
+            if (deferredFrames.get(i) <= frame) {
+                putNow(deferred.remove(i));
+                deferredFrames.remove(i);
+            }
+        }
+    }
+
+    synchronized void clear() {
+        while (size > 0) {
+            bitmaps[--size] = null;
+        }
+        deferred.clear(); // left to the gc, the frame can still draw them
+        deferredFrames.clear();
+        for (Bitmap part : parts) {
+            part.recycle();
+        }
+        parts.clear(); // drawnFrame is advanced only by finishFrame()
+    }
+
+    // returns decoded bitmap or null, decodes into the reusable bitmap if possible
+    Bitmap decodeByteArray(byte[] bytes, int length) {
+        BitmapFactory.Options options = getOptions();
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(bytes, 0, length, options);
+        } catch (IllegalArgumentException e) { // tile is not 256x256
+            put(options.inBitmap);
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeByteArray(bytes, 0, length, options);
+        }
+        if (bitmap == null) {
+            put(options.inBitmap);
+        }
+        return bitmap;
+    }
+
+
+    // returns decoded bitmap or null, decodes into the reusable bitmap if possible, stream must support mark()
+    Bitmap decodeStream(InputStream stream) throws IOException {
+        if (stream == null) {
+            return null;
+        }
+        BitmapFactory.Options options = getOptions();
+        Bitmap bitmap;
+        stream.mark(Integer.MAX_VALUE);
+        try {
+            bitmap = BitmapFactory.decodeStream(stream, null, options);
+        } catch (IllegalArgumentException e) { // tile is not 256x256
+            put(options.inBitmap);
+            options.inBitmap = null;
+            stream.reset();
+            bitmap = BitmapFactory.decodeStream(stream, null, options);
+        }
+        if (bitmap == null) {
+            put(options.inBitmap);
+        }
+        return bitmap;
+    }
+
+    // returns the square part of the tile scaled to 256x256 or null, decodes only this part
+    // decoder - of the tile, can be shared by threads, left, top, size - px of the part as if the tile is 256x256
+    Bitmap decodeRegion(BitmapRegionDecoder decoder, int left, int top, int size) {
+        Scaler scaler = scalers.get();
+        int scale = decoder.getWidth(); // tile can be not 256x256
+        scaler.src.set(left * scale / 256, top * scale / 256, (left + size) * scale / 256, (top + size) * scale / 256);
+        int regionSize = scaler.src.width();
+        Bitmap reusable = getPart(regionSize); // inBitmap of the region decoder must have the same size before api 19
+        scaler.options.inBitmap = reusable;
+        Bitmap decoded = decoder.decodeRegion(scaler.src, scaler.options);
+        scaler.options.inBitmap = null;
+        if (decoded != reusable && reusable != null) {
+            reusable.recycle();
+        }
+        if (decoded == null) {
+            return null;
+        }
+        Bitmap bitmap = getOrCreate();
+        scaler.canvas.setBitmap(bitmap);
+        scaler.canvas.drawBitmap(decoded, null, scaler.dst, filterPaint);
+        scaler.canvas.setBitmap(null);
+        putPart(decoded); // for the next tiles of this depth, inBitmap needs api 16
+        return bitmap;
+    }
+
+
+    // decodes the tile with transparency and draws it over the bitmap, returns false if it cannot be decoded
+    boolean drawOver(Bitmap bitmap, InputStream stream) {
+        if (stream == null) {
+            return false;
+        }
+        Bitmap layer = BitmapFactory.decodeStream(stream); // argb_8888
+        if (layer == null) {
+            return false;
+        }
+        Scaler scaler = scalers.get();
+        scaler.bounds.set(0, 0, bitmap.getWidth(), bitmap.getHeight());
+        scaler.canvas.setBitmap(bitmap);
+        scaler.canvas.drawBitmap(layer, null, scaler.bounds, filterPaint);
+        scaler.canvas.setBitmap(null);
+        layer.recycle();
+        return true;
+    }
+
+
+    private BitmapFactory.Options getOptions() {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.RGB_565; // 2 bytes/px
+        options.inMutable = true; // can be reused
+        options.inSampleSize = 1;
+        options.inBitmap = get();
+        return options;
+    }
+
+    // returns decoded part of the size or null
+    private synchronized Bitmap getPart(int size) {
+        for (int i = 0; i < parts.size(); i++) {
+            if (parts.get(i).getWidth() == size && parts.get(i).getHeight() == size) {
+                return parts.remove(i);
+            }
+        }
+        return null;
+    }
+
+    // keeps the part for reusing, recycles the oldest part over the limit
+    private synchronized void putPart(Bitmap part) {
+        if (!part.isMutable()) {
+            part.recycle();
+            return;
+        }
+        parts.add(part);
+        if (parts.size() > maxParts) {
+            parts.remove(0).recycle();
+        }
+    }
+
+    // under the lock
+    private void putNow(Bitmap bitmap) {
+        if (bitmap == null || size == bitmaps.length || !bitmap.isMutable() || bitmap.isRecycled()) {
+            return;
+        }
+        if (bitmap.getWidth() != 256 || bitmap.getHeight() != 256 || bitmap.getConfig() != Bitmap.Config.RGB_565) {
+            return;
+        }
+        for (int i = 0; i < size; i++) {
+            if (bitmaps[i] == bitmap) {
+                return;
+            }
+        }
+        bitmaps[size++] = bitmap;
+    }
+
+
+    // reusable objects to scale decoded parts of tiles, one for each thread
+    private static class Scaler {
+        private final BitmapFactory.Options options = new BitmapFactory.Options();
+        private final Rect src = new Rect();
+        private final Rect dst = new Rect(0, 0, 256, 256);
+        private final Rect bounds = new Rect();
+        private final Canvas canvas = new Canvas();
+
+        private Scaler() {
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+            options.inMutable = true; // can be reused
+        }
+    }
+}
@@ -0,0 +1,317 @@
+/*
+background job that downloads a set of tiles of one map, one job at a time
+tiles existing in the storage and tiles that have failed recently are skipped
+subclass walks tiles in the fixed order on the job thread, job keeps a limited number of requests in Downloads
+state is saved periodically in the storage, resumed job skips tiles before the first unfinished one
+new job is pinned with "next": 0, tiles of the pinned jobs are not deleted by TileEviction
+
+state json:
+{
+   "type": "area",        // RegionDownload or "track" for TrackDownload
+   "map": "osm",
+   "zMin": 10,
+   "zMax": 14,
+   "total": 4096,         // number of tiles in the walk
+   "next": 1024,          // number of tiles processed in the walk order
+   ...                    // fields of the subclass
+}
+ */
+package com.aqoleg.cat.app;
+
+import android.os.Process;
+import com.aqoleg.cat.data.Files;
+import com.aqoleg.cat.data.Map;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+
+abstract class DownloadJob implements Runnable, Downloads.Listener {
+    static final String jsonType = "type";
+    private static final String jsonMap = "map";
+    private static final String jsonZMin = "zMin";
+    private static final String jsonZMax = "zMax";
+    private static final String jsonTotal = "total";
+    private static final String jsonNext = "next";
+    private static final int priority = 1 << 29; // after visible and stale tiles
+    private static final int maxRequests = 16; // queued and running requests of the job
+    private static final int saveInterval = 5000; // ms
+
+    final Files files = Files.getInstance();
+    final Map map;
+    final int zMin;
+    final int zMax;
+    private final Downloads downloads = Downloads.getInstance();
+    private final Semaphore slots = new Semaphore(maxRequests);
+    private final long total; // number of tiles in the walk
+    private final long first; // number of the first tile to process
+    private final long startTime; // ms, to count speed since the start or resume
+    // job thread
+    private long number; // number of the next tile in the walk
+    // synchronized
+    private final LinkedHashMap<Downloads.Request, Long> requests = new LinkedHashMap<>(); // request - tile number
+    private long next; // number of the next tile to process
+    private long downloaded; // since startTime
+    private long bytes; // since startTime
+    private int failed;
+    private long saveTime;
+    private long finishTime; // ms, 0 if it is not finished
+    private boolean stopped;
+
+    DownloadJob(Map map, int zMin, int zMax, long total, long next) {
+        this.map = map;
+        this.zMin = zMin;
+        this.zMax = zMax;
+        this.total = total;
+        first = Math.min(next, total);
+        this.next = first;
+        startTime = System.currentTimeMillis();
+        saveTime = startTime;
+    }
+
+
+    // continues saved job or returns null
+    static DownloadJob resume() {
+        String state = Files.getInstance().readDownload();
+        if (state == null) {
+            return null;
+        }
+        try {
+            DownloadJob job = load(state);
+            if (job == null || job.map.getUrl(0, 0, 0) == null) {
+                Files.getInstance().log("cannot resume download " + state);
+                Files.getInstance().saveDownload(null);
+                return null;
+            }
+            job.start(false);
+            return job;
+        } catch (JSONException e) {
+            Files.getInstance().log("cannot read download state: " + e);
+            Files.getInstance().saveDownload(null);
+            return null;
+        }
+    }
+
+    // returns job with the saved state, does not start it, or returns null if there is no such map or track
+    static DownloadJob load(String state) throws JSONException {
+        JSONObject json = new JSONObject(state);
+        Map map = Map.load(json.getString(jsonMap));
+        if (!map.name.equals(json.getString(jsonMap))) {
+            return null;
+        }
+        int zMin = json.getInt(jsonZMin);
+        int zMax = json.getInt(jsonZMax);
+        long total = json.getLong(jsonTotal);
+        long next = json.getLong(jsonNext);
+        switch (json.getString(jsonType)) {
+            case RegionDownload.type:
+                return RegionDownload.resume(json, map, zMin, zMax, next);
+            case TrackDownload.type:
+                return TrackDownload.resume(json, map, zMin, zMax, total, next);
+            default:
+                return null;
+        }
+    }
+
+
+    // stops downloading, keep - save state to resume later, otherwise delete it
+    synchronized void stop(boolean keep) {
+        if (stopped) {
+            return;
+        }
+        if (keep && finishTime == 0) {
+            save();
+        } else {
+            files.saveDownload(null);
+            if (finishTime == 0) {
+                pin(false); // cancelled by the user
+            }
+        }
+        stopped = true;
+        downloads.drop(this, Integer.MAX_VALUE);
+        slots.release(maxRequests); // wake up the thread
+    }
+
+    synchronized boolean isFinished() {
+        return finishTime != 0;
+    }
+
+    // format - map name, processed tiles, total tiles, tiles/s, KB/s, failed tiles
+    synchronized String getProgress(String format) {
+        long time = finishTime == 0 ? System.currentTimeMillis() : finishTime;
+        float seconds = Math.max(1, time - startTime) / 1000f;
+        return String.format(
+                Locale.ENGLISH,
+                format,
+                map.name,
+                getProcessed(),
+                total,
+                downloaded / seconds,
+                bytes / seconds / 1024,
+                failed
+        );
+    }
+
+    @Override
+    public void run() {
+        try {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            boolean walked = walk(new Visitor() {
+                @Override
+                public boolean visit(int z, int y, int x) throws InterruptedException {
+                    return download(z, y, x);
+                }
+            });
+            if (!walked) {
+                return;
+            }
+            slots.acquire(maxRequests); // wait for the last requests
+            synchronized (this) {
+                if (!stopped) {
+                    finishTime = System.currentTimeMillis();
+                    files.saveDownload(null);
+                }
+            }
+            TileEviction.start();
+        } catch (InterruptedException ignored) {
+        } catch (Throwable t) {
+            files.log(t);
+        }
+    }
+
+    @Override
+    public void onDownloaded(Downloads.Request request) {
+        synchronized (this) {
+            if (requests.remove(request) == null) {
+                return;
+            }
+            if (request.bytes > 0) {
+                downloaded++;
+                bytes += request.bytes;
+            } else if (!request.notModified) {
+                failed++;
+            }
+        }
+        slots.release();
+    }
+
+
+    // saves state and pins the job, if it is a new job, and starts the job thread
+    void start(boolean save) {
+        if (save) {
+            save();
+            pin(true);
+        }
+        new Thread(this, getClass().getSimpleName()).start();
+    }
+
+    // returns true if the tile is in the walk
+    abstract boolean contains(int z, int y, int x);
+
+    // calls visitor for each tile in the fixed order, returns false if visitor has returned false
+    abstract boolean walk(Visitor visitor) throws InterruptedException;
+
+    // puts type and fields of the subclass in the state
+    abstract void putState(JSONObject json) throws JSONException;
+
+    // requests the next tile of the walk, if it has not been processed and does not exist
+    // returns false if job has been stopped
+    boolean download(int z, int y, int x) throws InterruptedException {
+        if (number++ < first) {
+            return true;
+        }
+        if (!files.hasTile(map.name, z, y, x) && downloads.canRequest(map, z, y, x)) {
+            URL url = map.getUrl(z, y, x);
+            if (url != null) {
+                slots.acquire();
+                synchronized (this) {
+                    if (stopped) {
+                        return false;
+                    }
+                    Downloads.Request request = downloads.request(
+                            map,
+                            z,
+                            y,
+                            x,
+                            url,
+                            false,
+                            priority,
+                            Integer.MAX_VALUE,
+                            null,
+                            this
+                    );
+                    requests.put(request, number - 1);
+                }
+            } else {
+                synchronized (this) {
+                    failed++;
+                }
+            }
+        }
+        synchronized (this) {
+            if (stopped) {
+                return false;
+            }
+            next = number;
+            if (System.currentTimeMillis() - saveTime > saveInterval) {
+                save();
+            }
+        }
+        return true;
+    }
+
+
+    // number of processed tiles in the walk order, without unfinished requests
+    private synchronized long getProcessed() {
+        return requests.isEmpty() ? next : requests.values().iterator().next();
+    }
+
+    private synchronized void save() {
+        saveTime = System.currentTimeMillis();
+        String state = getState(getProcessed());
+        if (state != null) {
+            files.saveDownload(state);
+        }
+    }
+
+    // adds or removes the job in the pinned ones
+    private void pin(boolean add) {
+        String pin = getState(0);
+        if (pin == null) {
+            return;
+        }
+        ArrayList<String> pins = files.readPins();
+        pins.remove(pin);
+        if (add) {
+            pins.add(pin);
+        }
+        files.savePins(pins);
+    }
+
+    // returns json without line breaks or null
+    private String getState(long next) {
+        try {
+            JSONObject json = new JSONObject();
+            putState(json);
+            json.put(jsonMap, map.name);
+            json.put(jsonZMin, zMin);
+            json.put(jsonZMax, zMax);
+            json.put(jsonTotal, total);
+            json.put(jsonNext, next);
+            return json.toString();
+        } catch (JSONException e) {
+            files.log(e);
+            return null;
+        }
+    }
+
+
+    interface Visitor {
+        // returns false to stop
+        boolean visit(int z, int y, int x) throws InterruptedException;
+    }
+}
@@ -0,0 +1,514 @@
+/*
+downloads tiles and saves them in the storage, one single instance, thread-safe
+each host has its own queue of requests and a limited number of simultaneous connections
+connections are kept alive between requests
+stale tiles are revalidated with conditional requests, 304 updates only the freshness of the saved tile
+tiles of the map with webp quality are transcoded in webp on the download thread, if it is smaller
+response is read in a reusable buffer, sized by Content-Length, then decoded and saved from this buffer
+failed tiles are not requested again for some time: tiles missing on the server for days, after errors
+exponentially longer, missing tiles are remembered in the storage
+latency and failures of hosts are reported to Map, tile is tried once on the other endpoint if the host fails
+ */
+package com.aqoleg.cat.app;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import com.aqoleg.cat.data.Files;
+import com.aqoleg.cat.data.Map;
+import com.aqoleg.cat.utils.Metrics;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+class Downloads {
+    private static final int defaultBufferBytes = 64 * 1024; // if there is no Content-Length
+    private static final int maxTileBytes = 4 << 20; // larger response is not a tile
+    private static final int maxBuffers = 16;
+    private static final int maxBufferBytes = 256 * 1024; // larger buffers are not kept
+    private static final long notFoundRetryInterval = 7L * 24 * 60 * 60 * 1000; // ms
+    private static final long minRetryInterval = 15 * 1000; // ms, after the first error
+    private static final long maxRetryInterval = 10 * 60 * 1000; // ms
+    private static Downloads downloads; // singleton
+
+    private final Files files = Files.getInstance();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final HashMap<Long, Request> requests = new HashMap<>(); // queued and running requests by tile key
+    private final HashMap<String, Host> hosts = new HashMap<>();
+    private final ArrayList<byte[]> buffers = new ArrayList<>(); // reusable buffers of responses, synchronized
+    private final SSLSocketFactory tlsSocketFactory;
+
+    private int maxConnectionsPerHost = 4;
+
+    private Downloads() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            tlsSocketFactory = new TlsSocketFactory();
+        } else {
+            tlsSocketFactory = null;
+        }
+    }
+
+
+    static synchronized Downloads getInstance() {
+        if (downloads == null) {
+            downloads = new Downloads();
+        }
+        return downloads;
+    }
+
+
+    synchronized void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        // limit of idle keep-alive connections of the whole process, not of each host
+        System.setProperty("http.maxConnections", String.valueOf(maxConnectionsPerHost));
+        dispatch();
+    }
+
+    // queues tile, returns request, merges with the request of the same tile
+    // priority - lower is more important, pass - number to drop outdated requests
+    // revalidate - tile is saved, use conditional request
+    // pool - pool to decode bitmap or null if bitmap is not needed
+    // listener - will be called on the main thread after downloading or null, merged requests call all listeners
+    synchronized Request request(
+            Map map,
+            int z,
+            int y,
+            int x,
+            URL url,
+            boolean revalidate,
+            int priority,
+            int pass,
+            BitmapPool pool,
+            Listener listener
+    ) {
+        long key = TileCache.key(map.id, z, y, x);
+        Request request = requests.get(key);
+        if (request != null) {
+            if (request.priority > priority) {
+                request.priority = priority;
+            }
+            if (listener != null && !request.listeners.contains(listener)) {
+                request.listeners.add(listener);
+            }
+            if (pool != null) {
+                request.pool = pool;
+            }
+            request.pass = pass;
+            return request;
+        }
+        request = new Request(map, z, y, x, key, url, revalidate);
+        request.priority = priority;
+        request.pass = pass;
+        request.pool = pool;
+        if (listener != null) {
+            request.listeners.add(listener);
+        }
+        requests.put(key, request);
+        Host host = hosts.get(url.getHost());
+        if (host == null) {
+            host = new Host();
+            hosts.put(url.getHost(), host);
+        }
+        host.queue.add(request);
+        dispatch();
+        return request;
+    }
+
+    // sets new priority and pass, returns false if the request has been dropped or finished
+    // listener - is added again, if it has been removed by drop() while the request was kept for other listeners
+    synchronized boolean update(Request request, int priority, int pass, Listener listener) {
+        if (request.dropped || requests.get(request.key) != request) { // finished, listeners have been notified
+            return false;
+        }
+        request.priority = priority;
+        request.pass = pass;
+        if (listener != null && !request.listeners.contains(listener)) {
+            request.listeners.add(listener);
+        }
+        return true;
+    }
+
+    // removes this listener from queued requests with pass lower than this pass, drops requests without listeners
+    synchronized void drop(Listener listener, int pass) {
+        for (Host host : hosts.values()) {
+            Iterator<Request> iterator = host.queue.iterator();
+            while (iterator.hasNext()) {
+                Request request = iterator.next();
+                if (request.pass < pass && request.listeners.remove(listener) && request.listeners.isEmpty()) {
+                    iterator.remove();
+                    requests.remove(request.key);
+                    request.dropped = true;
+                }
+            }
+        }
+    }
+
+    // returns false if downloading of the tile has failed recently and should not be retried yet
+    boolean canRequest(Map map, int z, int y, int x) {
+        Files.Failure failure = files.getTileFailure(map.name, z, y, x);
+        if (failure == null) {
+            return true;
+        }
+        long interval = notFoundRetryInterval;
+        if (!failure.notFound) {
+            interval = Math.min(maxRetryInterval, minRetryInterval << Math.min(failure.count - 1, 16));
+        }
+        return System.currentTimeMillis() - failure.time >= interval;
+    }
+
+    // returns number of queued and running requests
+    synchronized int getQueueSize() {
+        return requests.size();
+    }
+
+
+    // starts the most important requests of each host
+    private synchronized void dispatch() {
+        for (Host host : hosts.values()) {
+            while (host.running < maxConnectionsPerHost && !host.queue.isEmpty()) {
+                int best = 0;
+                for (int i = 1; i < host.queue.size(); i++) {
+                    if (host.queue.get(i).priority < host.queue.get(best).priority) {
+                        best = i;
+                    }
+                }
+                host.running++;
+                executor.execute(host.queue.remove(best));
+            }
+        }
+    }
+
+    private synchronized void finish(final Request request) {
+        requests.remove(request.key);
+        hosts.get(request.url.getHost()).running--;
+        dispatch();
+        if (requests.isEmpty()) { // idle, buffers are allocated again with the next requests
+            synchronized (buffers) {
+                buffers.clear();
+            }
+        }
+        for (final Listener listener : request.listeners) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        listener.onDownloaded(request);
+                    } catch (Throwable t) {
+                        Files.getInstance().log(t);
+                    }
+                }
+            });
+        }
+    }
+
+
+    // returns reusable buffer or new buffer with at least this length
+    private byte[] getBuffer(int length) {
+        synchronized (buffers) {
+            for (int i = buffers.size() - 1; i >= 0; i--) {
+                if (buffers.get(i).length >= length) {
+                    return buffers.remove(i);
+                }
+            }
+        }
+        return new byte[length];
+    }
+
+    // keeps buffer, if the pool is not full and buffer is not too large, buffer must not be used after that
+    private void putBuffer(byte[] buffer) {
+        if (buffer.length > maxBufferBytes) {
+            return;
+        }
+        synchronized (buffers) {
+            if (buffers.size() < maxBuffers) {
+                buffers.add(buffer);
+            }
+        }
+    }
+
+
+    // returns true if bytes can be decoded as a bitmap, without decoding
+    private static boolean isImage(byte[] bytes, int length) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(bytes, 0, length, options);
+        return options.outWidth > 0;
+    }
+
+
+    interface Listener {
+        // on the main thread
+        void onDownloaded(Request request);
+    }
+
+    static class Request implements Runnable {
+        final Map map;
+        final int z;
+        final int y;
+        final int x;
+        final long key;
+        final URL url;
+        final boolean revalidate;
+        // result
+        Bitmap bitmap; // decoded bitmap or null
+        int bytes; // downloaded bytes, 0 if failed or not modified
+        boolean notModified; // saved tile has been revalidated
+        // Downloads, synchronized
+        private final ArrayList<Listener> listeners = new ArrayList<>(1);
+        private int priority;
+        private int pass;
+        private BitmapPool pool;
+        private boolean dropped;
+
+        private Request(Map map, int z, int y, int x, long key, URL url, boolean revalidate) {
+            this.map = map;
+            this.z = z;
+            this.y = y;
+            this.x = x;
+            this.key = key;
+            this.url = url;
+            this.revalidate = revalidate;
+        }
+
+
+        @Override
+        public void run() {
+            try {
+                URL failover = download(url, true);
+                if (failover != null) {
+                    download(failover, false);
+                }
+            } catch (Throwable t) {
+                Files.getInstance().log(t);
+            }
+            downloads.finish(this);
+        }
+
+
+        // returns url of the other endpoint to try, if this one has not responded, or null
+        private URL download(URL url, boolean canFailover) {
+            HttpURLConnection connection = null;
+            InputStream inputStream = null;
+            byte[] buffer = null;
+            boolean keepAlive = false;
+            boolean responded = false;
+            long startNs = System.nanoTime();
+            try {
+                connection = (HttpURLConnection) url.openConnection();
+                if (downloads.tlsSocketFactory != null && url.getProtocol().equals("https")) {
+                    ((HttpsURLConnection) connection).setSSLSocketFactory(downloads.tlsSocketFactory);
+                }
+                connection.setConnectTimeout(10000);
+                connection.setReadTimeout(15000);
+                connection.setRequestProperty("User-Agent", "cat.aqoleg.com");
+                if (revalidate) {
+                    Files.Freshness freshness = downloads.files.getTileFreshness(map.name, z, y, x);
+                    if (freshness != null && freshness.etag != null) {
+                        connection.setRequestProperty("If-None-Match", freshness.etag);
+                    }
+                    if (freshness != null && freshness.lastModified != null) {
+                        connection.setRequestProperty("If-Modified-Since", freshness.lastModified);
+                    }
+                }
+                int responseCode = connection.getResponseCode();
+                if (responseCode < HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                    responded = true;
+                    Map.reportResponse(url, (System.nanoTime() - startNs) / 1000000);
+                }
+                if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    keepAlive = true; // no body
+                    notModified = true;
+                    Metrics.count(Metrics.notModified);
+                    downloads.files.saveTileFreshness(
+                            map.name,
+                            z,
+                            y,
+                            x,
+                            connection.getHeaderField("ETag"),
+                            connection.getHeaderField("Last-Modified")
+                    );
+                    return null;
+                } else if (responseCode == HttpURLConnection.HTTP_NOT_FOUND
+                        || responseCode == HttpURLConnection.HTTP_GONE
+                        || responseCode == HttpURLConnection.HTTP_NO_CONTENT) {
+                    // saved tile is kept, if it has been removed from the server
+                    downloads.files.saveTileFailure(map.name, z, y, x, !revalidate);
+                    Metrics.count(Metrics.downloadFailures);
+                    return null;
+                } else if (responseCode != HttpURLConnection.HTTP_OK) {
+                    throw new IOException(connection.getResponseMessage());
+                }
+                int contentLength = connection.getContentLength(); // -1 if it is unknown
+                if (contentLength > maxTileBytes) {
+                    throw new IOException("response of " + contentLength + " bytes");
+                }
+                inputStream = connection.getInputStream();
+                buffer = downloads.getBuffer(contentLength > 0 ? contentLength : defaultBufferBytes);
+                int length = 0;
+                int read = inputStream.read(buffer, 0, buffer.length);
+                while (read >= 0) {
+                    length += read;
+                    if (length == buffer.length) { // grows only if Content-Length is unknown or incorrect
+                        read = inputStream.read();
+                        if (read < 0) {
+                            break;
+                        }
+                        if (length >= maxTileBytes) {
+                            throw new IOException("response of more than " + maxTileBytes + " bytes");
+                        }
+                        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                        buffer[length++] = (byte) read;
+                    }
+                    read = inputStream.read(buffer, length, buffer.length - length);
+                }
+                keepAlive = true; // the whole response has been read
+                Metrics.recordSince(Metrics.downloadMs, startNs);
+                Metrics.count(Metrics.downloads);
+                Metrics.add(Metrics.downloadedBytes, length);
+
+                BitmapPool pool;
+                synchronized (downloads) {
+                    pool = this.pool;
+                }
+                if (pool != null) {
+                    bitmap = pool.decodeByteArray(buffer, length);
+                    if (bitmap == null) {
+                        downloads.files.logOnce("Downloads.Request.download.0", "no bitmap for " + url);
+                        downloads.files.saveTileFailure(map.name, z, y, x, false);
+                        Metrics.count(Metrics.downloadFailures);
+                        return null;
+                    }
+                } else if (!isImage(buffer, length)) {
+                    downloads.files.logOnce("Downloads.Request.download.0", "no bitmap for " + url);
+                    downloads.files.saveTileFailure(map.name, z, y, x, false);
+                    Metrics.count(Metrics.downloadFailures);
+                    return null;
+                }
+                String extension = connection.getContentType(); // image/png, image/jpeg
+                if (extension == null) {
+                    extension = "jpeg";
+                } else {
+                    extension = extension.substring(extension.lastIndexOf('/') + 1);
+                }
+                byte[] tileBytes = buffer;
+                int tileLength = length;
+                if (map.webpQuality > 0 && Webp.isSupported() && !extension.equals(Webp.extension)) {
+                    byte[] webpBytes = Webp.transcode(buffer, length, map.webpQuality);
+                    if (webpBytes != null && webpBytes.length < length) {
+                        tileBytes = webpBytes;
+                        tileLength = webpBytes.length;
+                        extension = Webp.extension;
+                    }
+                }
+                downloads.files.saveTile(tileBytes, tileLength, map.name, z, y, x, extension);
+                downloads.files.saveTileFreshness(
+                        map.name,
+                        z,
+                        y,
+                        x,
+                        connection.getHeaderField("ETag"),
+                        connection.getHeaderField("Last-Modified")
+                );
+                bytes = length;
+            } catch (Throwable t) {
+                if (!responded) {
+                    Map.reportFailure(url);
+                    URL other = canFailover ? map.getUrl(z, y, x) : null;
+                    if (other != null && !other.getHost().equals(url.getHost())) {
+                        return other;
+                    }
+                }
+                downloads.files.logOnce("Downloads.Request.download.1", "cannot download " + url + ": " + t);
+                downloads.files.saveTileFailure(map.name, z, y, x, false);
+                Metrics.count(Metrics.downloadFailures);
+            } finally {
+                if (inputStream != null) {
+                    try {
+                        inputStream.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+                if (connection != null && !keepAlive) {
+                    connection.disconnect();
+                }
+                if (buffer != null) {
+                    downloads.putBuffer(buffer);
+                }
+            }
+            return null;
+        }
+    }
+
+    private static class Host {
+        private final ArrayList<Request> queue = new ArrayList<>();
+        private int running;
+    }
+
+    private static class TlsSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory socketFactory = HttpsURLConnection.getDefaultSSLSocketFactory();
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return socketFactory.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return socketFactory.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return enableTls(socketFactory.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+            return enableTls(socketFactory.createSocket(s, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return enableTls(socketFactory.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return enableTls(socketFactory.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return enableTls(socketFactory.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return enableTls(socketFactory.createSocket(address, port, localAddress, localPort));
+        }
+
+
+        private Socket enableTls(Socket socket) {
+            if (socket != null && (socket instanceof SSLSocket)) {
+                ((SSLSocket) socket).setEnabledProtocols(new String[]{"TLSv1.1", "TLSv1.2"});
+            }
+            return socket;
+        }
+    }
+}
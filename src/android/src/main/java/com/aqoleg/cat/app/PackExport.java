@@ -0,0 +1,81 @@
+/*
+exports saved tiles of the area for the range of zooms in the new pack map, walks in order z, y, x
+ */
+package com.aqoleg.cat.app;
+
+import android.os.AsyncTask;
+import com.aqoleg.cat.data.Files;
+import com.aqoleg.cat.data.Map;
+
+import java.util.ArrayList;
+
+class PackExport extends AsyncTask<Void, Void, String> {
+    private final Map map;
+    private final int zMin;
+    private final int zMax;
+    private final double xLeft;
+    private final double xRight;
+    private final double yTop;
+    private final double yBottom;
+
+    // xLeft > xRight, if area includes longitude 180
+    PackExport(Map map, int zMin, int zMax, double xLeft, double xRight, double yTop, double yBottom) {
+        this.map = map;
+        this.zMin = zMin;
+        this.zMax = zMax;
+        this.xLeft = xLeft;
+        this.xRight = xRight;
+        this.yTop = yTop;
+        this.yBottom = yBottom;
+        executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+
+    // returns name of the pack map or null
+    @Override
+    protected String doInBackground(Void... voids) {
+        try {
+            Files files = Files.getInstance();
+            ArrayList<Long> saved = new ArrayList<>();
+            for (int z = zMin; z <= zMax; z++) {
+                int tiles = 1 << z;
+                int xMin = (int) (xLeft * tiles);
+                int yMin = (int) (yTop * tiles);
+                int rows = RegionDownload.getRows(z, yTop, yBottom);
+                int columns = RegionDownload.getColumns(z, xLeft, xRight);
+                for (int row = 0; row < rows; row++) {
+                    if (isCancelled()) {
+                        return null;
+                    }
+                    for (int column = 0; column < columns; column++) {
+                        int x = (xMin + column) & (tiles - 1); // over longitude 180
+                        if (files.hasTile(map.name, z, yMin + row, x)) {
+                            saved.add(TileCache.key(0, z, yMin + row, x)); // z << 40 | y << 20 | x
+                        }
+                    }
+                }
+            }
+            if (saved.isEmpty()) {
+                return null;
+            }
+            long[] keys = new long[saved.size()];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = saved.get(i);
+            }
+            return files.exportPack(map, keys);
+        } catch (Throwable t) {
+            Files.getInstance().log(t);
+        }
+        return null;
+    }
+
+    @Override
+    protected void onPostExecute(String packName) {
+        try {
+            super.onPostExecute(packName);
+            App.finishPackExport(this, packName);
+        } catch (Throwable t) {
+            Files.getInstance().log(t);
+        }
+    }
+}
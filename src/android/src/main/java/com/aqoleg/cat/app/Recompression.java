@@ -0,0 +1,79 @@
+/*
+transcodes saved tiles of the map in webp, keeps the original tile if webp is not smaller
+quality of the map or defaultQuality, if the map does not save tiles as webp
+tiles in mbtiles and pack files are not changed
+ */
+package com.aqoleg.cat.app;
+
+import android.os.AsyncTask;
+import com.aqoleg.cat.data.Files;
+import com.aqoleg.cat.data.Map;
+
+import java.util.ArrayList;
+
+class Recompression extends AsyncTask<Void, Void, Long> {
+    private static final int defaultQuality = 75;
+
+    private final Map map;
+
+    Recompression(Map map) {
+        this.map = map;
+        executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+
+    // returns saved bytes or -1 if tiles of the map cannot be changed
+    @Override
+    protected Long doInBackground(Void... voids) {
+        try {
+            Files files = Files.getInstance();
+            final ArrayList<Long> saved = new ArrayList<>();
+            boolean changeable = files.forEachTile(map.name, new Files.TileVisitor() {
+                @Override
+                public void visit(int z, int y, int x, long length, long time) {
+                    saved.add(TileCache.key(0, z, y, x)); // z << 40 | y << 20 | x
+                }
+            });
+            if (!changeable) {
+                return -1L;
+            }
+            int quality = map.webpQuality > 0 ? map.webpQuality : defaultQuality;
+            long savedBytes = 0;
+            for (long key : saved) {
+                if (isCancelled()) {
+                    break;
+                }
+                int z = (int) (key >>> 40);
+                int y = (int) (key >>> 20) & 0xFFFFF;
+                int x = (int) key & 0xFFFFF;
+                byte[] tileBytes = files.readTile(map.name, z, y, x);
+                if (tileBytes == null || Webp.isWebp(tileBytes)) {
+                    continue;
+                }
+                byte[] webpBytes = Webp.transcode(tileBytes, tileBytes.length, quality);
+                if (webpBytes == null || webpBytes.length >= tileBytes.length) {
+                    continue;
+                }
+                files.saveTile(webpBytes, webpBytes.length, map.name, z, y, x, Webp.extension);
+                long length = files.getTileLength(map.name, z, y, x);
+                if (length >= 0) {
+                    savedBytes += tileBytes.length - length;
+                }
+            }
+            return savedBytes;
+        } catch (Throwable t) {
+            Files.getInstance().log(t);
+        }
+        return -1L;
+    }
+
+    @Override
+    protected void onPostExecute(Long savedBytes) {
+        try {
+            super.onPostExecute(savedBytes);
+            App.finishRecompression(this, savedBytes);
+        } catch (Throwable t) {
+            Files.getInstance().log(t);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+downloads all tiles of the area for the range of zooms, walks in order z, y, x
+
+state json, in addition to DownloadJob:
+{
+   "type": "area",
+   "xLeft": 0.5681,     // xLeft > xRight, if includes longitude 180
+   "xRight": 0.5702,
+   "yTop": 0.3273,      // yTop < yBottom, in the projection of the map
+   "yBottom": 0.3312
+}
+ */
+package com.aqoleg.cat.app;
+
+import com.aqoleg.cat.data.Map;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+class RegionDownload extends DownloadJob {
+    static final String type = "area";
+    private static final String jsonXLeft = "xLeft";
+    private static final String jsonXRight = "xRight";
+    private static final String jsonYTop = "yTop";
+    private static final String jsonYBottom = "yBottom";
+
+    private final double xLeft;
+    private final double xRight;
+    private final double yTop;
+    private final double yBottom;
+
+    private RegionDownload(
+            Map map,
+            int zMin,
+            int zMax,
+            double xLeft,
+            double xRight,
+            double yTop,
+            double yBottom,
+            long next
+    ) {
+        super(map, zMin, zMax, count(zMin, zMax, xLeft, xRight, yTop, yBottom), next);
+        this.xLeft = xLeft;
+        this.xRight = xRight;
+        this.yTop = yTop;
+        this.yBottom = yBottom;
+    }
+
+
+    // starts new job and saves it, returns null if map cannot be downloaded
+    // xLeft > xRight, if area includes longitude 180
+    static RegionDownload start(Map map, int zMin, int zMax, double xLeft, double xRight, double yTop, double yBottom) {
+        if (map.getUrl(0, 0, 0) == null) {
+            return null;
+        }
+        RegionDownload regionDownload = new RegionDownload(map, zMin, zMax, xLeft, xRight, yTop, yBottom, 0);
+        regionDownload.start(true);
+        return regionDownload;
+    }
+
+    // returns saved job, does not start it
+    static RegionDownload resume(JSONObject json, Map map, int zMin, int zMax, long next) throws JSONException {
+        return new RegionDownload(
+                map,
+                zMin,
+                zMax,
+                json.getDouble(jsonXLeft),
+                json.getDouble(jsonXRight),
+                json.getDouble(jsonYTop),
+                json.getDouble(jsonYBottom),
+                next
+        );
+    }
+
+
+    @Override
+    boolean contains(int z, int y, int x) {
+        if (z < zMin || z > zMax) {
+            return false;
+        }
+        int tiles = 1 << z;
+        int row = y - (int) (yTop * tiles);
+        int column = (x - (int) (xLeft * tiles)) & (tiles - 1); // over longitude 180
+        return row >= 0 && row < getRows(z, yTop, yBottom) && column < getColumns(z, xLeft, xRight);
+    }
+
+    @Override
+    boolean walk(Visitor visitor) throws InterruptedException {
+        for (int z = zMin; z <= zMax; z++) {
+            int tiles = 1 << z;
+            int xMin = (int) (xLeft * tiles);
+            int yMin = (int) (yTop * tiles);
+            int rows = getRows(z, yTop, yBottom);
+            int columns = getColumns(z, xLeft, xRight);
+            for (int row = 0; row < rows; row++) {
+                for (int column = 0; column < columns; column++) {
+                    if (!visitor.visit(z, yMin + row, (xMin + column) & (tiles - 1))) { // over longitude 180
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    void putState(JSONObject json) throws JSONException {
+        json.put(jsonType, type);
+        json.put(jsonXLeft, xLeft);
+        json.put(jsonXRight, xRight);
+        json.put(jsonYTop, yTop);
+        json.put(jsonYBottom, yBottom);
+    }
+
+
+    private static long count(int zMin, int zMax, double xLeft, double xRight, double yTop, double yBottom) {
+        long count = 0;
+        for (int z = zMin; z <= zMax; z++) {
+            count += (long) getRows(z, yTop, yBottom) * getColumns(z, xLeft, xRight);
+        }
+        return count;
+    }
+
+    static int getRows(int z, double yTop, double yBottom) {
+        int tiles = 1 << z;
+        return Math.min(tiles - 1, (int) (yBottom * tiles)) - (int) (yTop * tiles) + 1;
+    }
+
+    static int getColumns(int z, double xLeft, double xRight) {
+        int tiles = 1 << z;
+        int xMin = (int) (xLeft * tiles);
+        int xMax = Math.min(tiles - 1, (int) (xRight * tiles));
+        if (xLeft > xRight) {
+            xMax += tiles;
+        }
+        return Math.min(tiles, xMax - xMin + 1);
+    }
+}
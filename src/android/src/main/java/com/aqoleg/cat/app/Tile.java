@@ -0,0 +1,41 @@
+/*
+one tile of the map in the TileCache
+ */
+package com.aqoleg.cat.app;
+
+import android.graphics.Bitmap;
+import com.aqoleg.cat.data.Map;
+
+import java.net.URL;
+
+class Tile {
+    final long key;
+    final Map map;
+    final int z;
+    final int y;
+    final int x;
+    Bitmap bitmap; // can be shared with other tiles with the same content id
+    long contentId; // id of the bytes of the saved tile shared with identical tiles, 0 if bitmap is not shared
+    URL url; // not null, if tile should be downloaded
+    boolean stale; // saved tile is older than maxAge, url is for revalidation
+    Downloads.Request download; // not null, if tile is downloading
+    // layered map
+    Tile[] layers; // tiles of the layers with their urls and downloads, not in the cache, or null
+    boolean invalid; // layer has been downloaded, bitmap should be composited again
+    // Tiles queue
+    int priority; // lower is more important
+    int pass; // the last drawing pass with this tile
+    // TileCache
+    int bytes; // accounted size with the bitmap
+    Tile nextInBucket;
+    Tile newer;
+    Tile older;
+
+    Tile(Map map, int z, int y, int x) {
+        key = TileCache.key(map.id, z, y, x);
+        this.map = map;
+        this.z = z;
+        this.y = y;
+        this.x = x;
+    }
+}
@@ -0,0 +1,271 @@
+/*
+memory cache of tiles, main thread only
+
+key - map id, z, y, x packed in one long:
+ bits 63..45 - map id
+ bits 44..40 - z
+ bits 39..20 - y
+ bits 19..0  - x
+
+hash table with chained buckets for lookup, doubly linked list for lru order
+size is limited by bytes of bitmaps
+tiles with the same content id share one bitmap, it is counted once
+bitmaps of removed tiles are returned to the BitmapPool, shared bitmap after the last tile
+ */
+package com.aqoleg.cat.app;
+
+import android.graphics.Bitmap;
+import com.aqoleg.cat.utils.Metrics;
+
+import java.util.HashMap;
+
+class TileCache {
+    private static final int tileBytes = 128; // approximate size of the Tile object without bitmap
+
+    private final long maxBytes;
+    private final BitmapPool pool;
+    // content id - bitmap and number of tiles, synchronized for hasContent() from other threads
+    private final HashMap<Long, Shared> shared = new HashMap<>();
+
+    private Tile[] table = new Tile[64];
+    private Tile newest; // the top of the stack
+    private Tile oldest; // the bottom of the stack, first to remove
+    private int size;
+    private long bytes;
+
+    TileCache(long maxBytes, BitmapPool pool) {
+        this.maxBytes = maxBytes;
+        this.pool = pool;
+    }
+
+
+    static long key(int mapId, int z, int y, int x) {
+        return ((long) mapId << 45) | ((long) z << 40) | ((long) y << 20) | x;
+    }
+
+
+    // returns tile and puts it on the top of the stack, or returns null
+    Tile get(long key) {
+        Tile tile = find(key);
+        if (tile != null) {
+            moveToTop(tile);
+        }
+        return tile;
+    }
+
+    // returns true if there is a bitmap with this content id, thread-safe
+    boolean hasContent(long contentId) {
+        synchronized (shared) {
+            return shared.containsKey(contentId);
+        }
+    }
+
+    // puts tile on the top of the stack, replaces tile with the same key, removes the bottom tiles if it is full
+    // tile with content id gets the shared bitmap, if it exists, otherwise its bitmap becomes shared
+    void put(Tile tile) {
+        Tile removed = remove(tile.key);
+        if (removed != tile) {
+            share(tile);
+            if (removed != null && (removed.contentId != 0 || removed.bitmap != tile.bitmap)) {
+                release(removed);
+            }
+        }
+        if (size >= table.length * 3 / 4) {
+            resize();
+        }
+        int index = index(tile.key, table.length);
+        tile.nextInBucket = table[index];
+        table[index] = tile;
+        tile.older = newest;
+        tile.newer = null;
+        if (newest != null) {
+            newest.newer = tile;
+        }
+        newest = tile;
+        if (oldest == null) {
+            oldest = tile;
+        }
+        size++;
+        tile.bytes = getBytes(tile);
+        bytes += tile.bytes;
+        trim();
+    }
+
+    // replaces bitmap of the tile, tile can be already removed from the cache
+    void setBitmap(Tile tile, Bitmap bitmap) {
+        if (find(tile.key) != tile) { // old bitmap has been returned to the pool with the removed tile
+            pool.put(bitmap);
+            return;
+        }
+        if (tile.contentId != 0 || tile.bitmap != bitmap) {
+            release(tile);
+        }
+        tile.bitmap = bitmap;
+        tile.contentId = 0; // downloaded
+        bytes -= tile.bytes;
+        tile.bytes = getBytes(tile);
+        bytes += tile.bytes;
+        trim();
+    }
+
+    int size() {
+        return size;
+    }
+
+    long bytes() {
+        return bytes;
+    }
+
+    long maxBytes() {
+        return maxBytes;
+    }
+
+
+    // returns removed tile or null
+    private Tile remove(long key) {
+        int index = index(key, table.length);
+        Tile previous = null;
+        Tile tile = table[index];
+        while (tile != null) {
+            if (tile.key == key) {
+                if (previous == null) {
+                    table[index] = tile.nextInBucket;
+                } else {
+                    previous.nextInBucket = tile.nextInBucket;
+                }
+                unlink(tile);
+                tile.nextInBucket = null;
+                size--;
+                bytes -= tile.bytes;
+                return tile;
+            }
+            previous = tile;
+            tile = tile.nextInBucket;
+        }
+        return null;
+    }
+
+    private Tile find(long key) {
+        Tile tile = table[index(key, table.length)];
+        while (tile != null) {
+            if (tile.key == key) {
+                return tile;
+            }
+            tile = tile.nextInBucket;
+        }
+        return null;
+    }
+
+    // removes the bottom tiles, keeps the top one
+    private void trim() {
+        while (bytes > maxBytes && oldest != newest) {
+            release(remove(oldest.key));
+            Metrics.count(Metrics.cacheEvictions);
+        }
+    }
+
+    // replaces bitmap of the tile with the shared one or shares it
+    private void share(Tile tile) {
+        if (tile.contentId == 0) {
+            return;
+        }
+        synchronized (shared) {
+            Shared content = shared.get(tile.contentId);
+            if (content != null) {
+                if (tile.bitmap != content.bitmap) {
+                    pool.put(tile.bitmap); // decoded before sharing
+                    tile.bitmap = content.bitmap;
+                }
+                content.tiles++;
+            } else if (tile.bitmap != null) {
+                shared.put(tile.contentId, new Shared(tile.bitmap));
+                bytes += getBytes(tile.bitmap);
+            } else {
+                tile.contentId = 0;
+            }
+        }
+    }
+
+    // returns bitmap of the removed tile to the pool, if it is not used by other tiles
+    private void release(Tile tile) {
+        if (tile.contentId != 0) {
+            synchronized (shared) {
+                Shared content = shared.get(tile.contentId);
+                if (content != null && content.bitmap == tile.bitmap) {
+                    if (--content.tiles > 0) {
+                        return;
+                    }
+                    shared.remove(tile.contentId);
+                    bytes -= getBytes(content.bitmap);
+                }
+            }
+        }
+        pool.put(tile.bitmap);
+    }
+
+    private void resize() {
+        Tile[] oldTable = table;
+        table = new Tile[oldTable.length << 1];
+        Tile tile, next;
+        int index;
+        for (Tile bucket : oldTable) {
+            tile = bucket;
+            while (tile != null) {
+                next = tile.nextInBucket;
+                index = index(tile.key, table.length);
+                tile.nextInBucket = table[index];
+                table[index] = tile;
+                tile = next;
+            }
+        }
+    }
+
+    private void moveToTop(Tile tile) {
+        if (tile == newest) {
+            return;
+        }
+        unlink(tile);
+        tile.older = newest;
+        newest.newer = tile;
+        newest = tile;
+    }
+
+    private void unlink(Tile tile) {
+        if (tile.newer == null) {
+            newest = tile.older;
+        } else {
+            tile.newer.older = tile.older;
+        }
+        if (tile.older == null) {
+            oldest = tile.newer;
+        } else {
+            tile.older.newer = tile.newer;
+        }
+        tile.newer = null;
+        tile.older = null;
+    }
+
+    // shared bitmap is counted separately
+    private static int getBytes(Tile tile) {
+        return tile.contentId != 0 || tile.bitmap == null ? tileBytes : tileBytes + getBytes(tile.bitmap);
+    }
+
+    private static int getBytes(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private static int index(long key, int tableSize) {
+        int hash = (int) (key ^ (key >>> 32)) * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & (tableSize - 1);
+    }
+
+
+    private static class Shared {
+        private final Bitmap bitmap;
+        private int tiles = 1; // number of tiles in the cache with this bitmap
+
+        private Shared(Bitmap bitmap) {
+            this.bitmap = bitmap;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+deletes the least recently used saved tiles on the background thread, if maps are larger than their quotas
+saves the time of the last use of the tiles first, eviction itself runs at most once in evictionInterval
+quota of the map is in its properties, maxBytes is the quota of all maps together
+tiles of the pinned download jobs are never deleted, mbtiles and pack maps are never changed
+maps are walked one at a time, only the summary of each map is kept: bytes by day of the last use
+if all maps are larger than maxBytes, the oldest days are deleted, the last of them partly, the order is by day
+ */
+package com.aqoleg.cat.app;
+
+import android.os.Process;
+import com.aqoleg.cat.data.Files;
+import com.aqoleg.cat.data.Map;
+import com.aqoleg.cat.utils.Metrics;
+import org.json.JSONException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+class TileEviction implements Runnable {
+    private static final long maxBytes = 4L << 30; // of all maps
+    private static final long evictionInterval = 60 * 60 * 1000; // ms
+    private static final int days = 512; // in the summary of the map, the last one includes all older tiles
+    private static final long daySeconds = 24 * 60 * 60;
+
+    private static long evictionTime; // ms of the last eviction, synchronized on the class
+    private static boolean running; // synchronized on the class
+
+    private final Files files = Files.getInstance();
+    private final ArrayList<DownloadJob> pins = new ArrayList<>();
+    private final ArrayList<DownloadJob> mapPins = new ArrayList<>(); // of the current map
+    private final long now = System.currentTimeMillis() / 1000; // s
+
+    private TileEviction() {
+    }
+
+
+    // saves the time of the last use of tiles and evicts tiles, if it has not been done recently
+    static void start() {
+        new Thread(new TileEviction(), "TileEviction").start();
+    }
+
+
+    @Override
+    public void run() {
+        try {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+            files.saveTouchedTiles();
+            synchronized (TileEviction.class) {
+                long time = System.currentTimeMillis();
+                if (running || time - evictionTime < evictionInterval) {
+                    return;
+                }
+                running = true;
+                evictionTime = time;
+            }
+            try {
+                evict();
+            } finally {
+                synchronized (TileEviction.class) {
+                    running = false;
+                }
+            }
+        } catch (InterruptedException ignored) {
+        } catch (Throwable t) {
+            files.log(t);
+        }
+    }
+
+
+    private void evict() throws InterruptedException {
+        for (String pin : files.readPins()) {
+            try {
+                DownloadJob job = DownloadJob.load(pin);
+                if (job != null) {
+                    pins.add(job);
+                }
+            } catch (JSONException e) {
+                files.log("cannot read pin " + pin + ": " + e);
+            }
+        }
+        ArrayList<String> mapNames = new ArrayList<>();
+        ArrayList<long[]> summaries = new ArrayList<>(); // bytes of the tiles that can be deleted by day of the use
+        long bytes = 0;
+        for (String mapName : files.getMapNames()) {
+            Map map = Map.load(mapName);
+            MapTiles mapTiles = new MapTiles(mapName, 0);
+            loadPins(mapName);
+            if (!files.forEachTile(mapName, mapTiles)) {
+                continue;
+            }
+            mapTiles.sort();
+            if (map.quota > 0) {
+                while (mapTiles.bytes > map.quota && mapTiles.hasNext()) {
+                    mapTiles.deleteNext();
+                }
+            }
+            mapNames.add(mapName);
+            summaries.add(mapTiles.getSummary());
+            bytes += mapTiles.bytes;
+        }
+        if (bytes <= maxBytes) {
+            return;
+        }
+        long[] summary = new long[days]; // of all maps
+        for (long[] mapSummary : summaries) {
+            for (int day = 0; day < days; day++) {
+                summary[day] += mapSummary[day];
+            }
+        }
+        long excess = bytes - maxBytes;
+        int lastDay = days - 1; // the newest day to delete
+        while (lastDay > 0 && summary[lastDay] < excess) {
+            excess -= summary[lastDay--];
+        }
+        for (int i = 0; i < mapNames.size(); i++) {
+            long mapBytes = 0;
+            for (int day = lastDay; day < days; day++) {
+                mapBytes += summaries.get(i)[day];
+            }
+            if (mapBytes == 0) {
+                continue;
+            }
+            MapTiles mapTiles = new MapTiles(mapNames.get(i), lastDay);
+            loadPins(mapNames.get(i));
+            if (!files.forEachTile(mapNames.get(i), mapTiles)) {
+                continue;
+            }
+            mapTiles.sort();
+            while (mapTiles.hasNext() && (mapTiles.getNextDay() > lastDay || excess > 0)) {
+                if (mapTiles.getNextDay() == lastDay) {
+                    excess -= mapTiles.deleteNext();
+                } else {
+                    mapTiles.deleteNext();
+                }
+            }
+        }
+    }
+
+    // prepares pins of the map for isPinned()
+    private void loadPins(String mapName) {
+        mapPins.clear();
+        for (DownloadJob job : pins) {
+            if (job.map.name.equals(mapName)) {
+                mapPins.add(job);
+            }
+        }
+    }
+
+    // returns true if the tile is in one of the pinned download jobs of the map of loadPins()
+    private boolean isPinned(int z, int y, int x) {
+        for (DownloadJob job : mapPins) {
+            if (job.contains(z, y, x)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    // returns number of days since the last use, not more than the last day of the summary
+    private int getDay(long seconds) {
+        return (int) Math.min(days - 1, Math.max(0, (now - seconds) / daySeconds));
+    }
+
+
+    // saved tiles of one map, tiles that can be deleted are ordered from the least recently used
+    private class MapTiles implements Files.TileVisitor {
+        private final String mapName;
+        private final int minDay; // newer tiles are not collected
+        private long bytes; // of all saved tiles
+        private long[] keys = new long[1024]; // z << 40 | y << 20 | x of tiles that can be deleted
+        private int[] lengths = new int[1024];
+        private long[] order = new long[1024]; // seconds of the last use << 32 | index in keys
+        private int count;
+        private int next; // position in order of the next tile to delete
+
+        private MapTiles(String mapName, int minDay) {
+            this.mapName = mapName;
+            this.minDay = minDay;
+        }
+
+
+        @Override
+        public void visit(int z, int y, int x, long length, long time) {
+            bytes += length;
+            long seconds = Math.max(0, time / 1000);
+            if (getDay(seconds) < minDay || isPinned(z, y, x)) {
+                return;
+            }
+            if (count == keys.length) {
+                keys = Arrays.copyOf(keys, count * 2);
+                lengths = Arrays.copyOf(lengths, count * 2);
+                order = Arrays.copyOf(order, count * 2);
+            }
+            keys[count] = ((long) z << 40) | ((long) y << 20) | x;
+            lengths[count] = (int) length;
+            order[count] = (seconds << 32) | count;
+            count++;
+        }
+
+
+        private void sort() {
+            Arrays.sort(order, 0, count);
+        }
+
+        private boolean hasNext() {
+            return next < count;
+        }
+
+        // returns days since the last use of the next tile to delete
+        private int getNextDay() {
+            return getDay(order[next] >>> 32);
+        }
+
+        // returns bytes of the tiles, that can be deleted and have not been deleted, by day of the last use
+        private long[] getSummary() {
+            long[] summary = new long[days];
+            for (int i = next; i < count; i++) {
+                summary[getDay(order[i] >>> 32)] += lengths[(int) order[i]];
+            }
+            return summary;
+        }
+
+        // returns bytes of the deleted tile
+        private int deleteNext() {
+            int index = (int) order[next++];
+            long key = keys[index];
+            files.deleteTile(mapName, (int) (key >>> 40), (int) (key >>> 20) & 0xFFFFF, (int) key & 0xFFFFF);
+            bytes -= lengths[index];
+            Metrics.count(Metrics.tileEvictions);
+            Metrics.add(Metrics.evictedBytes, lengths[index]);
+            return lengths[index];
+        }
+    }
+}
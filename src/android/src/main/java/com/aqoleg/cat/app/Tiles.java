@@ -1,83 +1,348 @@
 /*
 handles tile cache, reads tiles from storage and downloads tiles
+saved tiles older than maxAge of the map are shown and revalidated in the background
+prefetched tiles ahead of the screen are read after the visible ones, a limited number per pass
+until the tile is read, placeholder is drawn from cached tiles of other zooms
+if there is no such tile in the storage, reader decodes the part of the saved tile of the lower zoom
+identical saved tiles are decoded once, the cache shares the bitmap
+tiles that have failed to download recently are not requested, tiles missing on the server are not read
+tile of the layered map is composited once from the saved tiles of its layers, layers are downloaded separately
+when the layer is downloaded, the tile is composited again, its old bitmap is shown until then
  */
 package com.aqoleg.cat.app;
 
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.os.AsyncTask;
-import android.os.Build;
 import android.util.DisplayMetrics;
-import android.view.Display;
 import com.aqoleg.cat.data.Files;
 import com.aqoleg.cat.data.Map;
+import com.aqoleg.cat.utils.Metrics;
 
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.InetAddress;
-import java.net.Socket;
-import java.net.URL;
-
-class Tiles {
-    final int cacheSize;
-    private final BitmapFactory.Options options = new BitmapFactory.Options();
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+
+class Tiles implements Downloads.Listener {
+    private static final int tileBytes = 256 * 256 * 2;
+    private static final int prefetchPriority = 1 << 26; // added to the priority, after all visible tiles
+    private static final int revalidationPriority = 1 << 28; // added to the priority, after all missing tiles
+    private static final int maxPrefetch = 8; // tiles in the queue per pass
+    private static final int maxSavedTiles = 256;
+    private static final int maxLayerDownloads = 1024;
+    private static final int maxRegionDecoders = 8;
+
     private final Files files = Files.getInstance();
-    private final Tile[] cache;
-
-    private int nextStackLevel;
-    private Reader reader;
-    private Downloader downloader;
-
-    Tiles(Display display) {
-        options.inPreferredConfig = Bitmap.Config.RGB_565; // 2 bytes/px
-        DisplayMetrics displayMetrics = new DisplayMetrics();
-        display.getMetrics(displayMetrics);
-        // 3 full screens of tiles
-        int cacheSize = (displayMetrics.heightPixels / 256 + 2) * (displayMetrics.widthPixels / 256 + 2) * 3;
-        if (cacheSize < 50) {
-            cacheSize = 50;
-        }
-        this.cacheSize = cacheSize;
-        cache = new Tile[cacheSize];
+    private final Downloads downloads = Downloads.getInstance();
+    private final BitmapPool pool = new BitmapPool(16);
+    private final TileCache cache;
+    private final int maxReaders = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private final ArrayList<Reader> readers = new ArrayList<>(); // running readers
+    private final ArrayList<Tile> queue = new ArrayList<>(); // tiles to read, sorted by priority after the pass
+    // tile key - -1 if tile is saved or Files.getTileSaves() when it has been missing
+    // the last checked tiles of the lower zooms, missing tile is checked again after any saved tile, synchronized
+    private final LinkedHashMap<Long, Long> savedTiles = new LinkedHashMap<Long, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(java.util.Map.Entry<Long, Long> eldest) {
+            return size() > maxSavedTiles;
+        }
+    };
+    // tile key - decoder of the saved tile of the lower zoom, the last used for placeholders, synchronized
+    // removed decoder is recycled, when no reader uses it
+    private final LinkedHashMap<Long, RegionDecoder> regionDecoders =
+            new LinkedHashMap<Long, RegionDecoder>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(java.util.Map.Entry<Long, RegionDecoder> eldest) {
+                    if (size() <= maxRegionDecoders) {
+                        return false;
+                    }
+                    eldest.getValue().remove();
+                    return true;
+                }
+            };
+    // key of the downloading layer tile - tile of the layered map, the last requested
+    private final LinkedHashMap<Long, Tile> layerDownloads = new LinkedHashMap<Long, Tile>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(java.util.Map.Entry<Long, Tile> eldest) {
+            return size() > maxLayerDownloads;
+        }
+    };
+    private final Rect placeholderSrc = new Rect();
+    private final Rect placeholderDst = new Rect();
+    private final Paint placeholderPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Comparator<Tile> priorityComparator = new Comparator<Tile>() {
+        @Override
+        public int compare(Tile tile1, Tile tile2) {
+            return tile1.priority < tile2.priority ? -1 : (tile1.priority == tile2.priority ? 0 : 1);
+        }
+    };
+
+    private int pass; // number of the current drawing pass
+
+    // heapPart - part of the app heap for the tile cache, from 0 to 1
+    Tiles(Context context, float heapPart) {
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int memoryClass = activityManager.getMemoryClass();
+        if ((context.getApplicationInfo().flags & ApplicationInfo.FLAG_LARGE_HEAP) != 0) {
+            memoryClass = activityManager.getLargeMemoryClass();
+        }
+        long heapBytes = Math.min((long) memoryClass << 20, Runtime.getRuntime().maxMemory());
+        long maxBytes = (long) (heapBytes * heapPart);
+        // at least 2 full screens of tiles
+        DisplayMetrics displayMetrics = context.getResources().getDisplayMetrics();
+        int screenTiles = (displayMetrics.heightPixels / 256 + 2) * (displayMetrics.widthPixels / 256 + 2);
+        if (maxBytes < (long) screenTiles * tileBytes * 2) {
+            maxBytes = (long) screenTiles * tileBytes * 2;
+        }
+        cache = new TileCache(maxBytes, pool);
     }
 
 
-    // returns bitmap from the cache, puts it on the top of the stack and starts downloader (if available)
-    // if there is no such tile in the cache, returns null and asynchronously loads it from storage
-    // if there is no such tile in the storage, gets it using lower zooms
-    Bitmap getBitmap(Map map, int z, int y, int x) {
-        for (Tile tile : cache) {
-            if (tile == null) {
+    // returns bitmap from the cache, puts it on the top of the stack and requests downloading (if available)
+    // if there is no such tile in the cache, returns null and requests it, call readRequested() after the pass
+    // priority - lower is more important, for example squared distance from the center of the screen
+    Bitmap getBitmap(Map map, int z, int y, int x, int priority) {
+        long key = TileCache.key(map.id, z, y, x);
+        Tile tile = cache.get(key);
+        if (tile != null) {
+            Metrics.count(Metrics.memoryHits);
+            requestDownload(tile, null, priority);
+            if (tile.layers != null) {
+                for (Tile layer : tile.layers) {
+                    requestDownload(layer, tile, priority);
+                }
+                if (tile.invalid) {
+                    request(map, z, y, x, key, priority); // composite again, show the old bitmap until then
+                }
+            }
+            return tile.bitmap;
+        }
+        Metrics.count(Metrics.memoryMisses);
+        request(map, z, y, x, key, priority);
+        return null;
+    }
+
+    // draws tile, that has not been read yet, using cached tiles without reading them
+    // part of the tile of the lower zoom, covered by available tiles of the next zoom
+    // returns false if nothing has been drawn
+    boolean drawPlaceholder(Canvas canvas, Map map, int z, int y, int x, int xPxLeft, int yPxTop) {
+        boolean drawn = false;
+        int pxSize = 256;
+        int xPx = 0, yPx = 0;
+        int zTile = z;
+        int yTile = y;
+        int xTile = x;
+        for (int i = 0; i < 5 && zTile > 0; i++) {
+            zTile--;
+            pxSize = pxSize >> 1;
+            xPx = (xPx >> 1) + ((xTile & 0b1) << 7);
+            yPx = (yPx >> 1) + ((yTile & 0b1) << 7);
+            xTile = xTile >> 1;
+            yTile = yTile >> 1;
+            Tile tile = cache.get(TileCache.key(map.id, zTile, yTile, xTile));
+            if (tile != null && tile.bitmap != null) {
+                int scale = tile.bitmap.getWidth(); // tile can be not 256x256
+                placeholderSrc.set(
+                        xPx * scale / 256,
+                        yPx * scale / 256,
+                        (xPx + pxSize) * scale / 256,
+                        (yPx + pxSize) * scale / 256
+                );
+                placeholderDst.set(xPxLeft, yPxTop, xPxLeft + 256, yPxTop + 256);
+                canvas.drawBitmap(tile.bitmap, placeholderSrc, placeholderDst, placeholderPaint);
+                drawn = true;
                 break;
             }
-            if (tile.equals(map, z, y, x)) {
-                tile.stackLevel = nextStackLevel++; // put on the top of the stack
-                if (tile.url != null && downloader == null) {
-                    downloader = new Downloader(tile);
-                }
-                return tile.bitmap;
+        }
+        for (int i = 0; i < 4; i++) {
+            Tile tile = cache.get(TileCache.key(map.id, z + 1, (y << 1) + (i >> 1), (x << 1) + (i & 0b1)));
+            if (tile != null && tile.bitmap != null) {
+                xPx = xPxLeft + ((i & 0b1) << 7);
+                yPx = yPxTop + ((i >> 1) << 7);
+                placeholderDst.set(xPx, yPx, xPx + 128, yPx + 128);
+                canvas.drawBitmap(tile.bitmap, null, placeholderDst, placeholderPaint);
+                drawn = true;
             }
         }
-        // if tile have not found in the cache, start reader
-        if (reader == null) {
-            reader = new Reader(map, z, y, x);
+        return drawn;
+    }
+
+    // requests tile ahead of the screen, call before readRequested()
+    // priority - lower is more important, from 0 to prefetchPriority
+    void prefetch(Map map, int z, int y, int x, int priority) {
+        getBitmap(map, z, y, x, prefetchPriority + priority);
+    }
+
+    // call after all getBitmap() of the pass
+    // drops tiles, that have not been requested in this pass, starts readers for the most important tiles
+    // if there is no such tile in the storage, reader gets it using lower zooms
+    void readRequested() {
+        downloads.drop(this, pass);
+        for (int i = queue.size() - 1; i >= 0; i--) {
+            if (queue.get(i).pass != pass) {
+                queue.remove(i);
+            }
         }
-        return null;
+        Metrics.record(Metrics.readQueue, queue.size());
+        Metrics.record(Metrics.downloadQueue, downloads.getQueueSize());
+        Collections.sort(queue, priorityComparator);
+        int prefetched = 0;
+        for (int i = 0; i < queue.size(); i++) {
+            if (queue.get(i).priority >= prefetchPriority && ++prefetched > maxPrefetch) {
+                queue.subList(i, queue.size()).clear(); // the rest is prefetched too
+                break;
+            }
+        }
+        startReaders();
+        pass++;
+    }
+
+    // call on the main thread before recording the frame, that is drawn later on other thread
+    // bitmaps of the tiles are not reused until the returned Runnable is run after drawing
+    Runnable startFrame() {
+        final long frame = pool.startFrame();
+        return new Runnable() {
+            @Override
+            public void run() {
+                pool.finishFrame(frame);
+            }
+        };
+    }
+
+    int getCacheSize() {
+        return cache.size();
+    }
+
+    long getCacheBytes() {
+        return cache.bytes();
+    }
+
+    long getCacheMaxBytes() {
+        return cache.maxBytes();
     }
 
     void unload() {
-        if (reader != null) {
+        for (Reader reader : readers) {
             reader.cancel(true);
-            reader = null;
         }
-        if (downloader != null) {
-            downloader.cancel(true);
-            downloader = null;
+        readers.clear();
+        queue.clear();
+        layerDownloads.clear();
+        synchronized (regionDecoders) {
+            for (RegionDecoder decoder : regionDecoders.values()) {
+                decoder.remove();
+            }
+            regionDecoders.clear();
+        }
+        downloads.drop(this, Integer.MAX_VALUE);
+        pool.clear();
+    }
+
+    @Override
+    public void onDownloaded(Downloads.Request request) {
+        synchronized (savedTiles) {
+            savedTiles.remove(request.key);
+        }
+        Tile layered = layerDownloads.get(request.key);
+        if (layered != null && layered.layers != null) {
+            for (Tile layer : layered.layers) {
+                if (layer.download == request) {
+                    layerDownloads.remove(request.key);
+                    layer.url = null;
+                    layer.stale = false;
+                    layer.download = null;
+                    if (request.bytes > 0 && cache.get(layered.key) == layered) {
+                        layered.invalid = true;
+                        App.refresh();
+                    }
+                    return;
+                }
+            }
+        }
+        synchronized (regionDecoders) {
+            RegionDecoder decoder = regionDecoders.remove(request.key); // decodes the old tile
+            if (decoder != null) {
+                decoder.remove();
+            }
+        }
+        Tile tile = cache.get(request.key);
+        if (tile == null || tile.download != request) {
+            pool.put(request.bitmap);
+            return;
+        }
+        tile.url = null;
+        tile.stale = false;
+        tile.download = null;
+        if (request.bitmap != null) { // do not remove preview or stale bitmap if bitmap has not been loaded
+            cache.setBitmap(tile, request.bitmap);
+            App.refresh();
+        }
+    }
+
+
+    // queues tile to read, merges with the tile of the same key
+    private void request(Map map, int z, int y, int x, long key, int priority) {
+        for (Reader reader : readers) {
+            if (reader.tile.key == key) {
+                reader.tile.pass = pass;
+                return;
+            }
+        }
+        for (Tile requested : queue) {
+            if (requested.key == key) { // merge
+                if (requested.pass != pass || requested.priority > priority) {
+                    requested.priority = priority;
+                }
+                requested.pass = pass;
+                return;
+            }
+        }
+        Tile tile = new Tile(map, z, y, x);
+        tile.priority = priority;
+        tile.pass = pass;
+        queue.add(tile);
+    }
+
+    // requests downloading of the tile with the url, layered - tile of the layered map, if this is its layer, or null
+    private void requestDownload(Tile tile, Tile layered, int priority) {
+        if (tile.url == null) {
+            return;
+        }
+        if (tile.stale) {
+            priority += revalidationPriority;
+        }
+        if (tile.download == null || !downloads.update(tile.download, priority, pass, this)) {
+            tile.download = downloads.request(
+                    tile.map,
+                    tile.z,
+                    tile.y,
+                    tile.x,
+                    tile.url,
+                    tile.stale,
+                    priority,
+                    pass,
+                    layered == null ? pool : null, // layer is not decoded, it is composited from the storage
+                    this
+            );
+            if (layered != null) {
+                layerDownloads.put(tile.key, layered);
+            }
+        }
+    }
+
+    private void startReaders() {
+        while (readers.size() < maxReaders && !queue.isEmpty()) {
+            readers.add(new Reader(queue.remove(0)));
         }
     }
 
@@ -85,8 +350,8 @@ class Tiles {
     private class Reader extends AsyncTask<Void, Void, Void> {
         private final Tile tile;
 
-        private Reader(Map map, int z, int y, int x) {
-            tile = new Tile(map, z, y, x);
+        private Reader(Tile tile) {
+            this.tile = tile;
             executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
         }
 
@@ -94,12 +359,31 @@ class Tiles {
         @Override
         protected Void doInBackground(Void... voids) {
             try {
-                tile.bitmap = loadBitmap(tile.z, tile.y, tile.x);
-                if (tile.bitmap != null) {
+                if (tile.map.layers.length > 0) {
+                    composite();
+                    return null;
+                }
+                Files.Failure failure = files.getTileFailure(tile.map.name, tile.z, tile.y, tile.x);
+                boolean missing = failure != null && failure.notFound; // neither on the server nor in the storage
+                tile.contentId = missing ? 0 : files.getTileContentId(tile.map.name, tile.z, tile.y, tile.x);
+                boolean shared = tile.contentId != 0 && cache.hasContent(tile.contentId); // bitmap is set by the cache
+                if (!shared && !missing) {
+                    tile.bitmap = loadBitmap(tile.z, tile.y, tile.x);
+                    if (tile.bitmap == null) {
+                        tile.contentId = 0;
+                    }
+                }
+                if (tile.bitmap != null || shared) {
+                    Metrics.count(Metrics.diskHits);
+                    files.touchTile(tile.map.name, tile.z, tile.y, tile.x);
+                    revalidateIfStale(tile);
                     return null;
                 }
-                tile.url = tile.map.getUrl(tile.z, tile.y, tile.x);
-                // try to fill the tile using lower zooms
+                Metrics.count(Metrics.diskMisses);
+                if (downloads.canRequest(tile.map, tile.z, tile.y, tile.x)) {
+                    tile.url = tile.map.getUrl(tile.z, tile.y, tile.x);
+                }
+                // try to fill the tile using the part of the lower zoom tile
                 int pxSize = 256;
                 int xPxLeft = 0, yPxTop = 0;
                 int zTile = tile.z;
@@ -123,10 +407,22 @@ class Tiles {
                     }
                     yTile = yTile >> 1;
 
-                    tile.bitmap = loadBitmap(zTile, yTile, xTile);
-                    if (tile.bitmap != null) {
-                        tile.bitmap = Bitmap.createBitmap(tile.bitmap, xPxLeft, yPxTop, pxSize, pxSize);
-                        tile.bitmap = Bitmap.createScaledBitmap(tile.bitmap, 256, 256, true);
+                    if (isSaved(zTile, yTile, xTile)) {
+                        RegionDecoder decoder = getRegionDecoder(zTile, yTile, xTile);
+                        if (decoder != null) {
+                            files.touchTile(tile.map.name, zTile, yTile, xTile);
+                            long startNs = System.nanoTime();
+                            try {
+                                tile.bitmap = pool.decodeRegion(decoder.decoder, xPxLeft, yPxTop, pxSize);
+                            } finally {
+                                synchronized (regionDecoders) {
+                                    decoder.release();
+                                }
+                            }
+                            Metrics.recordSince(Metrics.decodeMs, startNs);
+                            Metrics.count(Metrics.fallbacks);
+                            Metrics.record(Metrics.fallbackDepth, i + 1);
+                        }
                         return null;
                     }
                 }
@@ -141,187 +437,160 @@ class Tiles {
         protected void onPostExecute(Void aVoid) {
             try {
                 super.onPostExecute(aVoid);
-                int cachePos = 0; // replace the bottom item
-                int stackLevel, lowestStackLevel = nextStackLevel;
-                for (int i = 0; i < cacheSize; i++) {
-                    if (cache[i] == null) {
-                        cachePos = i;
-                        break;
-                    }
-                    stackLevel = cache[i].stackLevel;
-                    if (stackLevel < lowestStackLevel) {
-                        cachePos = i;
-                        lowestStackLevel = stackLevel;
-                    }
+                readers.remove(this);
+                if (tile.bitmap == null && tile.contentId != 0 && !cache.hasContent(tile.contentId)) {
+                    App.refresh(); // shared bitmap has been removed, request the tile again
+                    startReaders();
+                    return;
+                }
+                cache.put(tile);
+                startReaders();
+                if (tile.pass >= pass - 1) { // still visible
+                    App.refresh();
                 }
-                tile.stackLevel = nextStackLevel++;
-                cache[cachePos] = tile;
-                reader = null;
-                App.refresh();
             } catch (Throwable t) {
                 Files.getInstance().log(t);
             }
         }
 
 
-        private Bitmap loadBitmap(int z, int y, int x) {
-            return BitmapFactory.decodeFile(files.getTilePath(tile.map.name, z, y, x), options);
-        }
-    }
-
-    private class Downloader extends AsyncTask<Void, Void, Void> {
-        private final Tile tile;
-        private Bitmap bitmap;
-
-        private Downloader(Tile tile) {
-            this.tile = tile;
-            executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
-        }
-
-
-        @Override
-        protected Void doInBackground(Void... voids) {
-            HttpURLConnection connection = null;
-            InputStream inputStream = null;
-            try {
-                connection = (HttpURLConnection) tile.url.openConnection();
-                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
-                    if (tile.url.getProtocol().equals("https")) {
-                        ((HttpsURLConnection) connection).setSSLSocketFactory(new TlsSocketFactory());
-                    }
-                }
-                connection.setConnectTimeout(10000);
-                connection.setReadTimeout(15000);
-                connection.setRequestProperty("User-Agent", "cat.aqoleg.com");
-                inputStream = connection.getInputStream();
-                if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
-                    throw new IOException(connection.getResponseMessage());
-                }
-
-                ByteArrayOutputStream byteArray = new ByteArrayOutputStream();
-                byte[] buffer = new byte[1024];
-                int length = inputStream.read(buffer);
-                while (length >= 0) {
-                    byteArray.write(buffer, 0, length);
-                    length = inputStream.read(buffer);
-                }
-                byte[] tileBytes = byteArray.toByteArray(); // use bytes, because of creating both file and bitmap
-
-                bitmap = BitmapFactory.decodeByteArray(tileBytes, 0, tileBytes.length, options);
-                if (bitmap == null) {
-                    files.logOnce("Tiles.Downloader.doInBackground.0", "no bitmap for " + tile.url);
-                } else {
-                    String extension = connection.getContentType(); // image/png, image/jpeg
-                    if (extension == null) {
-                        extension = "jpeg";
+        // reads saved tiles of the layers and draws them one over another, remembers layers to download
+        private void composite() throws IOException {
+            tile.layers = new Tile[tile.map.layers.length];
+            boolean drawn = false;
+            for (int i = 0; i < tile.layers.length; i++) {
+                Tile layer = new Tile(tile.map.layers[i], tile.z, tile.y, tile.x);
+                tile.layers[i] = layer;
+                Files.Failure failure = files.getTileFailure(layer.map.name, tile.z, tile.y, tile.x);
+                boolean missing = failure != null && failure.notFound;
+                InputStream inputStream = missing ? null : files.openTile(layer.map.name, tile.z, tile.y, tile.x);
+                boolean decoded = false;
+                if (inputStream != null) {
+                    long startNs = System.nanoTime();
+                    if (i == 0) {
+                        tile.bitmap = pool.decodeStream(inputStream); // mutable, the next layers are drawn over it
+                        decoded = tile.bitmap != null;
                     } else {
-                        extension = extension.substring(extension.lastIndexOf('/') + 1);
+                        if (tile.bitmap == null) { // the bottom layer is not saved
+                            tile.bitmap = pool.getOrCreate();
+                            tile.bitmap.eraseColor(Color.WHITE);
+                        }
+                        decoded = pool.drawOver(tile.bitmap, inputStream);
                     }
-                    files.saveTile(tileBytes, tile.map.name, tile.z, tile.y, tile.x, extension);
+                    Metrics.recordSince(Metrics.decodeMs, startNs);
                 }
-            } catch (Throwable t) {
-                files.logOnce("Tiles.Downloader.doInBackground.1", "cannot download " + tile.url + ": " + t);
-            } finally {
-                if (inputStream != null) {
-                    try {
-                        inputStream.close();
-                    } catch (IOException ignored) {
+                if (!decoded) {
+                    Metrics.count(Metrics.diskMisses);
+                    if (!missing && downloads.canRequest(layer.map, tile.z, tile.y, tile.x)) {
+                        layer.url = layer.map.getUrl(tile.z, tile.y, tile.x);
                     }
+                    continue;
                 }
-                if (connection != null) {
-                    connection.disconnect();
-                }
+                drawn = true;
+                Metrics.count(Metrics.diskHits);
+                files.touchTile(layer.map.name, tile.z, tile.y, tile.x);
+                revalidateIfStale(layer);
             }
-            return null;
-        }
-
-        @Override
-        protected void onPostExecute(Void aVoid) {
-            try {
-                super.onPostExecute(aVoid);
-                if (bitmap != null) { // do not remove preview if bitmap has not been loaded
-                    tile.bitmap = bitmap;
-                }
-                tile.url = null;
-                downloader = null;
-                App.refresh();
-            } catch (Throwable t) {
-                Files.getInstance().log(t);
+            if (!drawn) {
+                pool.put(tile.bitmap);
+                tile.bitmap = null;
             }
         }
-    }
-
-    private class Tile {
-        private final Map map;
-        private final int z;
-        private final int y;
-        private final int x;
-        private Bitmap bitmap;
-        private int stackLevel;
-        private URL url;
-
-        private Tile(Map map, int z, int y, int x) {
-            this.map = map;
-            this.z = z;
-            this.y = y;
-            this.x = x;
-        }
-
-
-        private boolean equals(Map map, int z, int y, int x) {
-            return this.map.name.equals(map.name) && this.z == z && this.y == y && this.x == x;
-        }
-    }
-
-    private class TlsSocketFactory extends SSLSocketFactory {
-        private final SSLSocketFactory socketFactory = HttpsURLConnection.getDefaultSSLSocketFactory();
 
-        @Override
-        public String[] getDefaultCipherSuites() {
-            return socketFactory.getDefaultCipherSuites();
+        // sets url to revalidate the saved tile, if it is older than maxAge of its map
+        private void revalidateIfStale(Tile saved) {
+            if (saved.map.maxAge <= 0) {
+                return;
+            }
+            Files.Freshness freshness = files.getTileFreshness(saved.map.name, saved.z, saved.y, saved.x);
+            if (freshness != null && System.currentTimeMillis() - freshness.time > saved.map.maxAge
+                    && downloads.canRequest(saved.map, saved.z, saved.y, saved.x)) {
+                saved.url = saved.map.getUrl(saved.z, saved.y, saved.x);
+                saved.stale = saved.url != null;
+            }
         }
 
-        @Override
-        public String[] getSupportedCipherSuites() {
-            return socketFactory.getSupportedCipherSuites();
+        private Bitmap loadBitmap(int z, int y, int x) throws IOException {
+            InputStream inputStream = files.openTile(tile.map.name, z, y, x);
+            long startNs = System.nanoTime();
+            Bitmap bitmap = pool.decodeStream(inputStream);
+            Metrics.recordSince(Metrics.decodeMs, startNs);
+            return bitmap;
         }
 
-        @Override
-        public Socket createSocket() throws IOException {
-            return enableTls(socketFactory.createSocket());
+        // returns decoder of the saved tile of the lower zoom or null, remembers it for the neighbour tiles
+        // call release() under the lock of regionDecoders after use
+        private RegionDecoder getRegionDecoder(int z, int y, int x) {
+            long key = TileCache.key(tile.map.id, z, y, x);
+            synchronized (regionDecoders) {
+                RegionDecoder decoder = regionDecoders.get(key);
+                if (decoder != null) {
+                    decoder.users++;
+                    return decoder;
+                }
+            }
+            InputStream inputStream = files.openTile(tile.map.name, z, y, x);
+            if (inputStream == null) {
+                return null;
+            }
+            RegionDecoder decoder;
+            try {
+                decoder = new RegionDecoder(BitmapRegionDecoder.newInstance(inputStream, false));
+            } catch (IOException e) { // cannot be decoded
+                return null;
+            }
+            synchronized (regionDecoders) {
+                decoder.users++; // this reader
+                RegionDecoder old = regionDecoders.put(key, decoder);
+                if (old != null) { // opened by another reader
+                    old.remove();
+                }
+            }
+            return decoder;
         }
 
-        @Override
-        public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
-            return enableTls(socketFactory.createSocket(s, host, port, autoClose));
+        // returns true if the tile of the lower zoom is saved, remembers it for the neighbour tiles
+        private boolean isSaved(int z, int y, int x) {
+            long key = TileCache.key(tile.map.id, z, y, x);
+            Long saved;
+            synchronized (savedTiles) {
+                saved = savedTiles.get(key);
+            }
+            long saves = files.getTileSaves(); // before checking
+            if (saved != null && (saved < 0 || saved == saves)) {
+                return saved < 0;
+            }
+            boolean isSaved = files.hasTile(tile.map.name, z, y, x);
+            synchronized (savedTiles) {
+                savedTiles.put(key, isSaved ? -1 : saves);
+            }
+            return isSaved;
         }
+    }
 
-        @Override
-        public Socket createSocket(String host, int port) throws IOException {
-            return enableTls(socketFactory.createSocket(host, port));
-        }
 
-        @Override
-        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
-            return enableTls(socketFactory.createSocket(host, port, localHost, localPort));
-        }
+    // shared decoder of the tile, recycled when it is removed from regionDecoders and is not used
+    // synchronized on regionDecoders
+    private static class RegionDecoder {
+        private final BitmapRegionDecoder decoder;
+        private int users = 1; // the map and readers
+        private boolean removed;
 
-        @Override
-        public Socket createSocket(InetAddress host, int port) throws IOException {
-            return enableTls(socketFactory.createSocket(host, port));
+        private RegionDecoder(BitmapRegionDecoder decoder) {
+            this.decoder = decoder;
         }
 
-        @Override
-        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
-            return enableTls(socketFactory.createSocket(address, port, localAddress, localPort));
+        private void remove() {
+            if (!removed) {
+                removed = true;
+                release();
+            }
         }
 
-
-        private Socket enableTls(Socket socket) {
-            if (socket != null && (socket instanceof SSLSocket)) {
-                ((SSLSocket) socket).setEnabledProtocols(new String[]{"TLSv1.1", "TLSv1.2"});
+        private void release() {
+            if (--users == 0) {
+                decoder.recycle();
             }
-            return socket;
         }
     }
-}
\ No newline at end of file
+}
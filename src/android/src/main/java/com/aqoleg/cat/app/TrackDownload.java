@@ -0,0 +1,261 @@
+/*
+downloads tiles within the distance from the segments of the track for the range of zooms
+walks zoom by zoom along the track, tiles around each segment are checked in order y, x
+duplicates are skipped with the set of visited tiles of the current zoom, nothing else is collected while downloading
+contains() walks once into the sorted array of keys
+Estimator makes the same walk before the start to count tiles and the size to download
+
+state json, in addition to DownloadJob:
+{
+   "type": "track",
+   "track": "/storage/emulated/0/track.gpx",   // path or encoded track
+   "distance": 500                              // m
+}
+ */
+package com.aqoleg.cat.app;
+
+import android.os.AsyncTask;
+import com.aqoleg.cat.data.Files;
+import com.aqoleg.cat.data.Map;
+import com.aqoleg.cat.data.Track;
+import com.aqoleg.cat.utils.Projection;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+class TrackDownload extends DownloadJob {
+    static final String type = "track";
+    private static final String jsonTrack = "track";
+    private static final String jsonDistance = "distance";
+    private static final double equator = 40075016.686; // m
+    private static final double halfDiagonal = 0.7072; // of the tile, to check tiles by their centers
+
+    private final Track.Opened track;
+    private final int distance;
+    private long[] keys; // z << 40 | y << 20 | x of the walked tiles, ascending, null if not walked yet
+    private int count;
+
+    private TrackDownload(Map map, int zMin, int zMax, Track.Opened track, int distance, long total, long next) {
+        super(map, zMin, zMax, total, next);
+        this.track = track;
+        this.distance = distance;
+    }
+
+
+    // starts new job with the estimated parameters and saves it
+    static TrackDownload start(Estimator estimator) {
+        TrackDownload trackDownload = new TrackDownload(
+                estimator.map,
+                estimator.zMin,
+                estimator.zMax,
+                estimator.track,
+                estimator.distance,
+                estimator.tiles,
+                0
+        );
+        trackDownload.start(true);
+        return trackDownload;
+    }
+
+    // returns saved job, does not start it, or returns null if there is no such track
+    static TrackDownload resume(JSONObject json, Map map, int zMin, int zMax, long total, long next)
+            throws JSONException {
+        Track.Opened track = Track.open(json.getString(jsonTrack));
+        if (track == null) {
+            return null;
+        }
+        return new TrackDownload(map, zMin, zMax, track, json.getInt(jsonDistance), total, next);
+    }
+
+
+    @Override
+    synchronized boolean contains(int z, int y, int x) {
+        if (z < zMin || z > zMax) {
+            return false;
+        }
+        if (keys == null) {
+            keys = new long[1024];
+            try {
+                walk(new Visitor() {
+                    @Override
+                    public boolean visit(int z, int y, int x) {
+                        if (count == keys.length) {
+                            keys = Arrays.copyOf(keys, count * 2);
+                        }
+                        keys[count++] = ((long) z << 40) | ((long) y << 20) | x;
+                        return true;
+                    }
+                });
+            } catch (InterruptedException e) { // the visitor does not wait
+                Thread.currentThread().interrupt();
+            }
+            Arrays.sort(keys, 0, count);
+        }
+        return Arrays.binarySearch(keys, 0, count, ((long) z << 40) | ((long) y << 20) | x) >= 0;
+    }
+
+    @Override
+    boolean walk(Visitor visitor) throws InterruptedException {
+        return walk(track, map.ellipsoid, zMin, zMax, distance, visitor);
+    }
+
+    @Override
+    void putState(JSONObject json) throws JSONException {
+        json.put(jsonType, type);
+        json.put(jsonTrack, track.pathOrEncoded);
+        json.put(jsonDistance, distance);
+    }
+
+
+    // calls visitor once for each tile near the track, returns false if visitor has returned false
+    private static boolean walk(
+            Track track,
+            boolean ellipsoid,
+            int zMin,
+            int zMax,
+            int distance,
+            Visitor visitor
+    ) throws InterruptedException {
+        HashSet<Long> visited = new HashSet<>();
+        for (int z = zMin; z <= zMax; z++) {
+            visited.clear();
+            double xPrevious = Double.NaN;
+            double yPrevious = Double.NaN;
+            for (int i = 0; i < track.getLength(); i++) {
+                double x = track.getX(i);
+                double y = track.getY(i, ellipsoid);
+                if (x != x) { // NaN, segment delimiter
+                    xPrevious = Double.NaN;
+                    continue;
+                }
+                if (xPrevious != xPrevious) { // the first point of the segment
+                    xPrevious = x;
+                    yPrevious = y;
+                }
+                if (!walkSegment(xPrevious, yPrevious, x, y, z, ellipsoid, distance, visited, visitor)) {
+                    return false;
+                }
+                xPrevious = x;
+                yPrevious = y;
+            }
+        }
+        return true;
+    }
+
+    // calls visitor for not visited tiles with centers closer than distance + half of diagonal to the segment
+    private static boolean walkSegment(
+            double x0,
+            double y0,
+            double x1,
+            double y1,
+            int z,
+            boolean ellipsoid,
+            int distance,
+            HashSet<Long> visited,
+            Visitor visitor
+    ) throws InterruptedException {
+        if (x1 - x0 > 0.5) { // over longitude 180
+            x1 -= 1;
+        } else if (x0 - x1 > 0.5) {
+            x1 += 1;
+        }
+        int tiles = 1 << z;
+        double latitude = Projection.getLatitude((y0 + y1) / 2, ellipsoid);
+        double radius = distance / (equator * Math.cos(Math.toRadians(latitude))) * tiles + halfDiagonal;
+        // in tiles
+        x0 *= tiles;
+        y0 *= tiles;
+        double xDelta = x1 * tiles - x0;
+        double yDelta = y1 * tiles - y0;
+        double lengthSquared = xDelta * xDelta + yDelta * yDelta;
+        int xMin = (int) Math.floor(Math.min(x0, x0 + xDelta) - radius);
+        int xMax = Math.min(xMin + tiles - 1, (int) Math.floor(Math.max(x0, x0 + xDelta) + radius));
+        int yMin = Math.max(0, (int) Math.floor(Math.min(y0, y0 + yDelta) - radius));
+        int yMax = Math.min(tiles - 1, (int) Math.floor(Math.max(y0, y0 + yDelta) + radius));
+        for (int y = yMin; y <= yMax; y++) {
+            for (int x = xMin; x <= xMax; x++) {
+                // from the closest point of the segment to the center of the tile
+                double xFromStart = x + 0.5 - x0;
+                double yFromStart = y + 0.5 - y0;
+                double t = 0;
+                if (lengthSquared > 0) {
+                    t = Math.max(0, Math.min(1, (xFromStart * xDelta + yFromStart * yDelta) / lengthSquared));
+                }
+                xFromStart -= t * xDelta;
+                yFromStart -= t * yDelta;
+                if (xFromStart * xFromStart + yFromStart * yFromStart > radius * radius) {
+                    continue;
+                }
+                int xTile = x & (tiles - 1);
+                if (visited.add(((long) y << 20) | xTile) && !visitor.visit(z, y, xTile)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+
+    // counts tiles near the track, tiles to download and estimates the size using saved tiles of this map
+    static class Estimator extends AsyncTask<Void, Void, Void> {
+        private static final int defaultTileBytes = 20 * 1024; // if there are no saved tiles of the map
+
+        final Map map;
+        final int zMin;
+        final int zMax;
+        final Track.Opened track;
+        final int distance;
+        // result
+        long tiles;
+        long missingTiles;
+        long missingBytes; // estimated
+
+        Estimator(Map map, int zMin, int zMax, Track.Opened track, int distance) {
+            this.map = map;
+            this.zMin = zMin;
+            this.zMax = zMax;
+            this.track = track;
+            this.distance = distance;
+            executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        }
+
+
+        @Override
+        protected Void doInBackground(Void... voids) {
+            try {
+                final Files files = Files.getInstance();
+                final long[] savedBytes = new long[1];
+                walk(track, map.ellipsoid, zMin, zMax, distance, new Visitor() {
+                    @Override
+                    public boolean visit(int z, int y, int x) {
+                        tiles++;
+                        long length = files.getTileLength(map.name, z, y, x);
+                        if (length < 0) {
+                            missingTiles++;
+                        } else {
+                            savedBytes[0] += length;
+                        }
+                        return !isCancelled();
+                    }
+                });
+                long savedTiles = tiles - missingTiles;
+                missingBytes = missingTiles * (savedTiles == 0 ? defaultTileBytes : savedBytes[0] / savedTiles);
+            } catch (Throwable t) {
+                Files.getInstance().log(t);
+            }
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(Void aVoid) {
+            try {
+                super.onPostExecute(aVoid);
+                App.finishTrackDownloadEstimate(this);
+            } catch (Throwable t) {
+                Files.getInstance().log(t);
+            }
+        }
+    }
+}
@@ -7,6 +7,7 @@ import android.os.AsyncTask;
 import com.aqoleg.cat.ActivityView;
 import com.aqoleg.cat.data.Files;
 import com.aqoleg.cat.data.Track;
+import com.aqoleg.cat.utils.Metrics;
 
 import java.util.*;
 
@@ -42,6 +43,7 @@ class Tracks {
             synchronized (cache) {
                 track = cache.get(trackName);
             }
+            Metrics.count(track != null ? Metrics.trackHits : Metrics.trackMisses);
             selected.put(trackName, track);
             if (track != null) {
                 App.centerOnTrack(track);
@@ -144,7 +146,9 @@ class Tracks {
         protected Void doInBackground(Void... voids) {
             try {
                 for (String trackName : trackNames) {
+                    long startNs = System.nanoTime();
                     Track track = Track.load(trackName);
+                    Metrics.recordSince(Metrics.trackLoadMs, startNs);
                     openedTracks.put(trackName, track);
                     synchronized (cache) {
                         cache.put(trackName, track);
@@ -188,7 +192,9 @@ class Tracks {
         @Override
         protected Void doInBackground(Void... voids) {
             try {
+                long startNs = System.nanoTime();
                 loadedTrack = Track.load(trackName);
+                Metrics.recordSince(Metrics.trackLoadMs, startNs);
                 synchronized (cache) {
                     cache.put(trackName, loadedTrack);
                 }
@@ -250,8 +256,11 @@ class Tracks {
                     synchronized (cache) {
                         track = cache.get(trackName);
                     }
+                    Metrics.count(track != null ? Metrics.trackHits : Metrics.trackMisses);
                     if (track == null) {
+                        long startNs = System.nanoTime();
                         track = Track.load(trackName);
+                        Metrics.recordSince(Metrics.trackLoadMs, startNs);
                         synchronized (cache) {
                             cache.put(trackName, track);
                         }
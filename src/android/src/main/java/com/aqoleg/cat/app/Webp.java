@@ -0,0 +1,41 @@
+/*
+transcodes tiles in webp
+used since android 4.3, older versions cannot decode lossless and transparent webp
+quality 100 is lossless since android 10, lossy with the best quality before
+ */
+package com.aqoleg.cat.app;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import java.io.ByteArrayOutputStream;
+
+class Webp {
+    static final String extension = "webp";
+
+
+    static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+    }
+
+    // returns true if bytes are webp: 'RIFF', length, 'WEBP'
+    static boolean isWebp(byte[] bytes) {
+        return bytes.length >= 12
+                && bytes[0] == 'R' && bytes[1] == 'I' && bytes[2] == 'F' && bytes[3] == 'F'
+                && bytes[8] == 'W' && bytes[9] == 'E' && bytes[10] == 'B' && bytes[11] == 'P';
+    }
+
+    // returns bytes of webp or null if the tile cannot be decoded
+    // length - bytes of the tile in tileBytes, quality from 1 to 100
+    static byte[] transcode(byte[] tileBytes, int length, int quality) {
+        Bitmap bitmap = BitmapFactory.decodeByteArray(tileBytes, 0, length); // argb, keeps transparency
+        if (bitmap == null) {
+            return null;
+        }
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(length);
+        boolean compressed = bitmap.compress(Bitmap.CompressFormat.WEBP, quality, stream);
+        bitmap.recycle();
+        return compressed ? stream.toByteArray() : null;
+    }
+}
@@ -0,0 +1,843 @@
+/*
+tiles of one map as separate files mapName/z/y/x.extension, thread-safe
+saved tiles are indexed in memory, folder y is listed once, then updated by save() and delete()
+the row of the folder is indexed before listing, save() and delete() during listing are not lost
+index of the folder is the sorted array of x with the extension, its size is limited by bytes, not by folders
+time of the last use is the modification time of the file
+if the storage cannot change it, the time is appended to mapName/.used instead: key, tab, time
+lines of .used are appended once for each batch of touched tiles, read into sorted arrays by forEach()
+file is written as x.extension.tmp and renamed, so readers never see a partial tile
+
+identical tiles are saved once as mapName/shared/sha1.extension
+the second tile with the same bytes moves the first one in the shared file, both become links
+links of the y folder are lines in the file .links, appended after each change: x, tab, shared file name
+line with the empty name removes the link, the shared file is deleted with its last link
+links of each shared file are counted once from all .links files, on the first removal of a link or on forEach()
+each link is visited as a tile with its part of the bytes of the shared file
+ */
+package com.aqoleg.cat.data;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+class DirectoryStore implements EvictableStore {
+    private static final String[] tileExtensions = {"png", "jpeg", "webp"}; // in the order of lookup
+    private static final String sharedDirName = "shared";
+    private static final String linksFileName = ".links";
+    private static final String usedFileName = ".used";
+    private static final int maxRowBytes = 512 * 1024; // approximate heap of the index
+    private static final int maxRecentTiles = 1024;
+
+    private final File mapDir;
+    private final File sharedDir;
+    private final File usedFile; // synchronized
+    // z/y - saved tiles, the last used rows, synchronized
+    private final LinkedHashMap<String, Row> tileRows = new LinkedHashMap<>(16, 0.75f, true);
+    // sha1 - key z << 40 | y << 20 | x of the last tile saved as a separate file with these bytes
+    // synchronized, also for changes of links
+    private final LinkedHashMap<String, Long> recentTiles = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(java.util.Map.Entry<String, Long> eldest) {
+            return size() > maxRecentTiles;
+        }
+    };
+
+    private long rowBytes; // of all tileRows, synchronized on tileRows
+    private HashMap<String, Integer> linkCounts; // shared file - number of links or null, synchronized on recentTiles
+
+    DirectoryStore(File mapDir) {
+        this.mapDir = mapDir;
+        sharedDir = new File(mapDir, sharedDirName);
+        usedFile = new File(mapDir, usedFileName);
+    }
+
+
+    @Override
+    public boolean contains(int z, int y, int x) {
+        return getFile(z, y, x) != null;
+    }
+
+    @Override
+    public byte[] read(int z, int y, int x) throws IOException {
+        File file = getFile(z, y, x);
+        if (file == null) {
+            return null;
+        }
+        byte[] bytes = new byte[(int) file.length()];
+        DataInputStream stream = null;
+        try {
+            stream = new DataInputStream(new FileInputStream(file));
+            stream.readFully(bytes);
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public InputStream open(int z, int y, int x) throws IOException {
+        byte[] bytes = read(z, y, x);
+        return bytes == null ? null : new ByteArrayInputStream(bytes);
+    }
+
+    @Override
+    public long getLength(int z, int y, int x) {
+        File file = getFile(z, y, x);
+        return file == null ? -1 : file.length();
+    }
+
+    @Override
+    public long getTime(int z, int y, int x) {
+        File file = getFile(z, y, x);
+        return file == null ? 0 : file.lastModified();
+    }
+
+    @Override
+    public String getPath(int z, int y, int x) {
+        File file = getFile(z, y, x);
+        return file == null ? null : file.getAbsolutePath();
+    }
+
+    @Override
+    public long getContentId(int z, int y, int x) {
+        String link;
+        Row row = getTileRow(z + File.separator + y);
+        synchronized (tileRows) {
+            link = row.getExtension(x) >= 0 ? null : row.links.get(x); // separate file is used before the link
+        }
+        if (link == null) {
+            return 0;
+        }
+        return Math.max(1, Long.parseLong(link.substring(0, 15), 16)); // 60 bits of sha1
+    }
+
+    @Override
+    public void save(byte[] tileBytes, int length, int z, int y, int x, String extension) throws IOException {
+        String sha1 = getSha1(tileBytes, length);
+        int extensionIndex = Arrays.asList(tileExtensions).indexOf(extension);
+        if (sha1 != null && extensionIndex >= 0) {
+            String name = sha1 + "." + extension;
+            long key = ((long) z << 40) | ((long) y << 20) | x;
+            synchronized (recentTiles) {
+                if (!new File(sharedDir, name).isFile()) {
+                    Long recentKey = recentTiles.remove(sha1);
+                    if (recentKey == null || recentKey == key || !share(recentKey, name, length)) {
+                        recentTiles.put(sha1, key);
+                        unlink(z, y, x);
+                        saveFile(tileBytes, length, z, y, x, extension);
+                        return;
+                    }
+                }
+                link(z, y, x, name);
+                return;
+            }
+        }
+        synchronized (recentTiles) {
+            unlink(z, y, x);
+        }
+        saveFile(tileBytes, length, z, y, x, extension);
+    }
+
+    @Override
+    public boolean touch(int z, int y, int x, long time) {
+        File file = getFile(z, y, x);
+        if (file == null || file.setLastModified(time)) {
+            return true;
+        }
+        Files.getInstance().logOnce("DirectoryStore.touch", "cannot set time of " + file.getAbsolutePath());
+        return false;
+    }
+
+    // appends all tiles of the batch to .used with one writer
+    @Override
+    public void saveUsed(long[] keys, int count, long time) {
+        synchronized (usedFile) {
+            Writer writer = null;
+            try {
+                writer = new BufferedWriter(new FileWriter(usedFile, true));
+                for (int i = 0; i < count; i++) {
+                    writer.append(String.valueOf(keys[i])).append('\t').append(String.valueOf(time)).append('\n');
+                }
+            } catch (IOException e) {
+                Files.getInstance().logOnce("DirectoryStore.saveUsed", "cannot write " + usedFile.getAbsolutePath());
+            } finally {
+                if (writer != null) {
+                    try {
+                        writer.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+    }
+
+    // time is the later of the modification time and the time in .used, .used is rewritten without deleted tiles
+    @Override
+    public void forEach(Files.TileVisitor visitor) {
+        String[] zList = mapDir.list();
+        if (zList == null) {
+            return;
+        }
+        HashMap<String, Integer> counts;
+        synchronized (recentTiles) {
+            counts = new HashMap<>(getLinkCounts());
+        }
+        UsedTimes usedTimes = new UsedTimes();
+        synchronized (usedFile) {
+            usedTimes.read(usedFile);
+        }
+        HashSet<Integer> files = new HashSet<>(); // x of separate files of the y folder
+        HashMap<Integer, String> links = new HashMap<>();
+        for (String zName : zList) {
+            int z = parseNumber(zName);
+            String[] yList = z < 0 ? null : new File(mapDir, zName).list();
+            if (yList == null) {
+                continue;
+            }
+            for (String yName : yList) {
+                int y = parseNumber(yName);
+                File yDir = new File(mapDir, zName + File.separator + yName);
+                String[] xList = y < 0 ? null : yDir.list();
+                if (xList == null) {
+                    continue;
+                }
+                files.clear();
+                links.clear();
+                for (String name : xList) {
+                    if (name.equals(linksFileName)) {
+                        readLinks(new File(yDir, name), links);
+                        continue;
+                    }
+                    int dotIndex = name.lastIndexOf('.');
+                    if (dotIndex <= 0 || !Arrays.asList(tileExtensions).contains(name.substring(dotIndex + 1))) {
+                        continue;
+                    }
+                    int x = parseNumber(name.substring(0, dotIndex));
+                    if (x >= 0) {
+                        File file = new File(yDir, name);
+                        visit(visitor, z, y, x, file.length(), file.lastModified(), usedTimes);
+                        files.add(x);
+                    }
+                }
+                for (java.util.Map.Entry<Integer, String> link : links.entrySet()) {
+                    Integer count = counts.get(link.getValue());
+                    if (files.contains(link.getKey()) || count == null) { // separate file is used before the link
+                        continue;
+                    }
+                    File file = new File(sharedDir, link.getValue());
+                    long length = (file.length() + count - 1) / count;
+                    visit(visitor, z, y, link.getKey(), length, file.lastModified(), usedTimes);
+                }
+            }
+        }
+        if (usedTimes.lines > usedTimes.getLiveCount() * 2 + 8) {
+            rewriteUsed(usedTimes);
+        }
+    }
+
+    @Override
+    public void delete(int z, int y, int x) throws IOException {
+        synchronized (recentTiles) {
+            unlink(z, y, x);
+        }
+        File file = getFile(z, y, x);
+        if (file == null) {
+            return;
+        }
+        if (!file.delete()) {
+            throw new IOException("cannot delete " + file.getAbsolutePath());
+        }
+        synchronized (tileRows) {
+            Row row = tileRows.get(z + File.separator + y);
+            if (row != null) {
+                row.clear(x);
+                resize(row);
+            }
+        }
+    }
+
+
+    // calls visitor with the later of the time and the time from .used, marks the tile as live in usedTimes
+    private static void visit(
+            Files.TileVisitor visitor,
+            int z,
+            int y,
+            int x,
+            long length,
+            long time,
+            UsedTimes usedTimes
+    ) {
+        visitor.visit(z, y, x, length, Math.max(time, usedTimes.get(((long) z << 40) | ((long) y << 20) | x)));
+    }
+
+    // returns file of the saved tile or null
+    private File getFile(int z, int y, int x) {
+        String yPath = z + File.separator + y;
+        Row row = getTileRow(yPath);
+        int extensionIndex;
+        String link;
+        synchronized (tileRows) { // row can be updated by save()
+            extensionIndex = row.getExtension(x);
+            link = row.links.get(x);
+        }
+        if (extensionIndex >= 0) {
+            return new File(mapDir, yPath + File.separator + x + "." + tileExtensions[extensionIndex]);
+        }
+        return link == null ? null : new File(sharedDir, link);
+    }
+
+    // returns saved tiles of the y folder, lists folder if it is not indexed
+    // the row is indexed before listing, changes during listing are recorded in it, other threads wait for the list
+    private Row getTileRow(String yPath) {
+        Row row;
+        synchronized (tileRows) {
+            row = tileRows.get(yPath);
+            if (row != null) {
+                while (row.changed != null) { // listing by another thread
+                    try {
+                        tileRows.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                return row;
+            }
+            row = new Row();
+            row.changed = new HashSet<>();
+            tileRows.put(yPath, row);
+            resize(row);
+        }
+        Row listed = new Row();
+        try {
+            File yDir = new File(mapDir, yPath);
+            String[] list = yDir.list();
+            if (list != null) {
+                for (String name : list) {
+                    if (name.equals(linksFileName)) {
+                        readLinks(new File(yDir, name), listed.links);
+                        continue;
+                    }
+                    int dotIndex = name.lastIndexOf('.');
+                    if (dotIndex <= 0) {
+                        continue;
+                    }
+                    int extensionIndex = Arrays.asList(tileExtensions).indexOf(name.substring(dotIndex + 1));
+                    if (extensionIndex < 0) {
+                        continue;
+                    }
+                    try {
+                        listed.setExtension(Integer.parseInt(name.substring(0, dotIndex)), extensionIndex);
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+        } finally {
+            synchronized (tileRows) {
+                HashSet<Integer> changed = row.changed;
+                row.changed = null;
+                for (int i = 0; i < listed.size; i++) {
+                    if (!changed.contains(listed.xs[i])) {
+                        row.setExtension(listed.xs[i], listed.extensions[i]);
+                    }
+                }
+                for (java.util.Map.Entry<Integer, String> link : listed.links.entrySet()) {
+                    if (!changed.contains(link.getKey())) {
+                        row.links.put(link.getKey(), link.getValue());
+                    }
+                }
+                if (tileRows.get(yPath) == row) { // can be removed over the limit
+                    resize(row);
+                }
+                tileRows.notifyAll();
+            }
+        }
+        return row;
+    }
+
+    private void saveFile(byte[] tileBytes, int length, int z, int y, int x, String extension) throws IOException {
+        File yDir = new File(mapDir, z + File.separator + y);
+        if (!yDir.isDirectory() && !yDir.mkdirs()) {
+            throw new IOException("cannot create " + yDir.getAbsolutePath());
+        }
+        File file = new File(yDir, x + "." + extension);
+        File tmpFile = new File(yDir, file.getName() + ".tmp");
+        FileOutputStream stream = null;
+        try {
+            stream = new FileOutputStream(tmpFile);
+            stream.write(tileBytes, 0, length);
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        if (!tmpFile.renameTo(file)) { // replaces the old file
+            if (!tmpFile.delete()) {
+                Files.getInstance().logOnce("DirectoryStore.saveFile", "cannot delete " + tmpFile.getAbsolutePath());
+            }
+            throw new IOException("cannot rename " + tmpFile.getAbsolutePath());
+        }
+        int extensionIndex = Arrays.asList(tileExtensions).indexOf(extension);
+        for (int i = 0; i < tileExtensions.length; i++) { // the tile can be saved in another format before
+            if (i != extensionIndex) {
+                File other = new File(yDir, x + "." + tileExtensions[i]);
+                if (other.isFile() && !other.delete()) {
+                    throw new IOException("cannot delete " + other.getAbsolutePath());
+                }
+            }
+        }
+        synchronized (tileRows) {
+            Row row = tileRows.get(z + File.separator + y);
+            if (row != null) {
+                row.setExtension(x, extensionIndex);
+                resize(row);
+            }
+        }
+    }
+
+    // moves the separate file of the recent tile in the shared file and links it, returns false if it is changed
+    private boolean share(long key, String name, int length) throws IOException {
+        int z = (int) (key >>> 40);
+        int y = (int) (key >>> 20) & 0xFFFFF;
+        int x = (int) key & 0xFFFFF;
+        File file = getFile(z, y, x);
+        if (file == null || file.getParentFile().equals(sharedDir) || file.length() != length) {
+            return false;
+        }
+        if (!file.getName().endsWith(name.substring(name.lastIndexOf('.')))) {
+            return false;
+        }
+        if (!sharedDir.isDirectory() && !sharedDir.mkdirs()) {
+            throw new IOException("cannot create " + sharedDir.getAbsolutePath());
+        }
+        if (!file.renameTo(new File(sharedDir, name))) {
+            throw new IOException("cannot move " + file.getAbsolutePath());
+        }
+        synchronized (tileRows) {
+            Row row = tileRows.get(z + File.separator + y);
+            if (row != null) {
+                row.clear(x);
+                resize(row);
+            }
+        }
+        link(z, y, x, name);
+        return true;
+    }
+
+    // saves the tile as the link to the existing shared file, deletes separate file of this tile
+    private void link(int z, int y, int x, String name) throws IOException {
+        File file = getFile(z, y, x);
+        if (file != null && !file.getParentFile().equals(sharedDir)) {
+            delete(z, y, x);
+        }
+        appendLink(z, y, x, name);
+    }
+
+    // removes the link of the tile, if it exists
+    private void unlink(int z, int y, int x) throws IOException {
+        Row row = getTileRow(z + File.separator + y);
+        synchronized (tileRows) {
+            if (!row.links.containsKey(x)) {
+                return;
+            }
+        }
+        appendLink(z, y, x, "");
+    }
+
+    // name - shared file or empty string to remove the link, deletes the shared file after its last link
+    // synchronized on recentTiles
+    private void appendLink(int z, int y, int x, String name) throws IOException {
+        String oldName;
+        Row row = getTileRow(z + File.separator + y);
+        synchronized (tileRows) {
+            oldName = row.links.get(x);
+        }
+        if (name.equals(oldName)) {
+            return;
+        }
+        if (oldName != null) {
+            getLinkCounts(); // counted before the change
+        }
+        File yDir = new File(mapDir, z + File.separator + y);
+        if (!yDir.isDirectory() && !yDir.mkdirs()) {
+            throw new IOException("cannot create " + yDir.getAbsolutePath());
+        }
+        Writer writer = null;
+        try {
+            writer = new FileWriter(new File(yDir, linksFileName), true).append(String.valueOf(x)).append('\t');
+            writer.append(name).append('\n');
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        synchronized (tileRows) {
+            Row indexed = tileRows.get(z + File.separator + y);
+            if (indexed != null) {
+                indexed.change(x);
+                if (name.isEmpty()) {
+                    indexed.links.remove(x);
+                } else {
+                    indexed.links.put(x, name);
+                }
+                resize(indexed);
+            }
+        }
+        if (linkCounts == null) { // the new line will be counted from the file
+            return;
+        }
+        if (!name.isEmpty()) {
+            Integer count = linkCounts.get(name);
+            linkCounts.put(name, count == null ? 1 : count + 1);
+        }
+        if (oldName != null) {
+            Integer count = linkCounts.remove(oldName);
+            if (count != null && count > 1) {
+                linkCounts.put(oldName, count - 1);
+            } else {
+                deleteShared(oldName);
+            }
+        }
+    }
+
+    // returns shared file name - number of links, reads all .links files on the first call
+    // deletes shared files without links, synchronized on recentTiles
+    private HashMap<String, Integer> getLinkCounts() {
+        if (linkCounts != null) {
+            return linkCounts;
+        }
+        linkCounts = new HashMap<>();
+        HashMap<Integer, String> links = new HashMap<>();
+        String[] zList = mapDir.list();
+        for (String zName : zList == null ? new String[0] : zList) {
+            String[] yList = parseNumber(zName) < 0 ? null : new File(mapDir, zName).list();
+            for (String yName : yList == null ? new String[0] : yList) {
+                File file = new File(mapDir, zName + File.separator + yName + File.separator + linksFileName);
+                if (parseNumber(yName) < 0 || !file.isFile()) {
+                    continue;
+                }
+                links.clear();
+                readLinks(file, links);
+                for (String name : links.values()) {
+                    Integer count = linkCounts.get(name);
+                    linkCounts.put(name, count == null ? 1 : count + 1);
+                }
+            }
+        }
+        String[] sharedList = sharedDir.list();
+        for (String name : sharedList == null ? new String[0] : sharedList) {
+            if (!linkCounts.containsKey(name)) {
+                deleteShared(name); // left by the older version
+            }
+        }
+        return linkCounts;
+    }
+
+    private void deleteShared(String name) {
+        File file = new File(sharedDir, name);
+        if (file.isFile() && !file.delete()) {
+            Files.getInstance().logOnce("DirectoryStore.deleteShared", "cannot delete " + file.getAbsolutePath());
+        }
+    }
+
+    // counts changed bytes of the indexed row, removes the last used rows over the limit, synchronized on tileRows
+    private void resize(Row row) {
+        int bytes = row.getBytes();
+        rowBytes += bytes - row.countedBytes;
+        row.countedBytes = bytes;
+        Iterator<Row> iterator = tileRows.values().iterator();
+        while (rowBytes > maxRowBytes && tileRows.size() > 1) {
+            rowBytes -= iterator.next().countedBytes;
+            iterator.remove();
+        }
+    }
+
+
+    // rewrites .used only for the live tiles of usedTimes, keeps the later time, if the tile has been touched again
+    private void rewriteUsed(UsedTimes usedTimes) {
+        synchronized (usedFile) {
+            UsedTimes newTimes = new UsedTimes(); // with the lines appended after reading usedTimes
+            newTimes.read(usedFile);
+            Writer writer = null;
+            try {
+                writer = new BufferedWriter(new FileWriter(usedFile));
+                for (int i = 0; i < newTimes.count; i++) {
+                    if (usedTimes.isLive(newTimes.keys[i])) {
+                        writer.append(String.valueOf(newTimes.keys[i])).append('\t');
+                        writer.append(String.valueOf(newTimes.times[i])).append('\n');
+                    }
+                }
+            } catch (IOException e) {
+                Files.getInstance().logOnce("DirectoryStore.rewriteUsed", "cannot write " + usedFile.getAbsolutePath());
+            } finally {
+                if (writer != null) {
+                    try {
+                        writer.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+    }
+
+    // returns hex sha1 of the first length bytes or null
+    private static String getSha1(byte[] bytes, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(bytes, 0, length);
+            StringBuilder sha1 = new StringBuilder(40);
+            for (byte b : digest.digest()) {
+                sha1.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sha1.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    // reads x - shared file name, rewrites the file without outdated lines if needed
+    private static void readLinks(File file, HashMap<Integer, String> links) {
+        int lines = 0;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            String line = reader.readLine();
+            while (line != null) {
+                String[] values = line.split("\t", -1);
+                if (values.length == 2) {
+                    if (values[1].isEmpty()) {
+                        links.remove(Integer.parseInt(values[0]));
+                    } else {
+                        links.put(Integer.parseInt(values[0]), values[1]);
+                    }
+                    lines++;
+                }
+                line = reader.readLine();
+            }
+        } catch (IOException | NumberFormatException e) {
+            Files.getInstance().logOnce("DirectoryStore.readLinks", "cannot read " + file.getAbsolutePath() + ": " + e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        if (lines <= links.size() * 2 + 8) {
+            return;
+        }
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new FileWriter(file));
+            for (java.util.Map.Entry<Integer, String> link : links.entrySet()) {
+                writer.append(String.valueOf(link.getKey())).append('\t').append(link.getValue()).append('\n');
+            }
+        } catch (IOException e) {
+            Files.getInstance().logOnce("DirectoryStore.readLinks", "cannot rewrite " + file.getAbsolutePath());
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    // returns non-negative number or -1
+    private static int parseNumber(String name) {
+        try {
+            return Integer.parseInt(name);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+
+    // saved tiles of the y folder
+    private static class Row {
+        private static final int linkBytes = 160; // approximate heap of one link
+
+        private final HashMap<Integer, String> links = new HashMap<>(); // x - name of the shared file
+        private int[] xs = new int[4]; // ascending x of separate files
+        private byte[] extensions = new byte[4]; // index in tileExtensions for each x
+        private int size;
+        private int countedBytes; // included in rowBytes
+        private HashSet<Integer> changed; // x saved or deleted while the folder is listed, null after listing
+
+        // returns index of the extension of the separate file or -1
+        private int getExtension(int x) {
+            int i = Arrays.binarySearch(xs, 0, size, x);
+            return i < 0 ? -1 : extensions[i];
+        }
+
+        private void setExtension(int x, int extensionIndex) {
+            change(x);
+            int i = Arrays.binarySearch(xs, 0, size, x);
+            if (i >= 0) {
+                extensions[i] = (byte) extensionIndex;
+                return;
+            }
+            i = -i - 1;
+            if (size == xs.length) {
+                xs = Arrays.copyOf(xs, size * 2);
+                extensions = Arrays.copyOf(extensions, size * 2);
+            }
+            System.arraycopy(xs, i, xs, i + 1, size - i);
+            System.arraycopy(extensions, i, extensions, i + 1, size - i);
+            xs[i] = x;
+            extensions[i] = (byte) extensionIndex;
+            size++;
+        }
+
+        private void clear(int x) {
+            change(x);
+            int i = Arrays.binarySearch(xs, 0, size, x);
+            if (i < 0) {
+                return;
+            }
+            System.arraycopy(xs, i + 1, xs, i, size - i - 1);
+            System.arraycopy(extensions, i + 1, extensions, i, size - i - 1);
+            size--;
+        }
+
+        // keeps the change from the result of the listing
+        private void change(int x) {
+            if (changed != null) {
+                changed.add(x);
+            }
+        }
+
+        // returns approximate heap of the row
+        private int getBytes() {
+            return 64 + xs.length * 5 + links.size() * linkBytes;
+        }
+    }
+
+
+    // times of the last use from .used, ascending keys with the latest time of each key
+    private static class UsedTimes {
+        private final BitSet live = new BitSet(); // indexes of the visited tiles
+        private long[] keys = new long[64]; // z << 40 | y << 20 | x
+        private long[] times = new long[64];
+        private int count;
+        private int lines; // in the file
+
+        // reads the file, synchronized on it
+        private void read(File file) {
+            if (!file.isFile()) {
+                return;
+            }
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new FileReader(file));
+                String line = reader.readLine();
+                while (line != null) {
+                    int tabIndex = line.indexOf('\t');
+                    if (tabIndex > 0) {
+                        if (count == keys.length) {
+                            keys = Arrays.copyOf(keys, count * 2);
+                            times = Arrays.copyOf(times, count * 2);
+                        }
+                        keys[count] = Long.parseLong(line.substring(0, tabIndex));
+                        times[count++] = Long.parseLong(line.substring(tabIndex + 1));
+                        lines++;
+                    }
+                    line = reader.readLine();
+                }
+            } catch (IOException | NumberFormatException e) {
+                Files.getInstance().logOnce("DirectoryStore.readUsed", "cannot read " + file.getAbsolutePath());
+            } finally {
+                if (reader != null) {
+                    try {
+                        reader.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+            sort(0, count - 1);
+            int unique = 0;
+            for (int i = 0; i < count; i++) {
+                if (unique > 0 && keys[unique - 1] == keys[i]) {
+                    times[unique - 1] = Math.max(times[unique - 1], times[i]);
+                } else {
+                    keys[unique] = keys[i];
+                    times[unique++] = times[i];
+                }
+            }
+            count = unique;
+        }
+
+        // returns time of the tile or 0, marks the tile as live
+        private long get(long key) {
+            int i = Arrays.binarySearch(keys, 0, count, key);
+            if (i < 0) {
+                return 0;
+            }
+            live.set(i);
+            return times[i];
+        }
+
+        private boolean isLive(long key) {
+            int i = Arrays.binarySearch(keys, 0, count, key);
+            return i >= 0 && live.get(i);
+        }
+
+        private int getLiveCount() {
+            return live.cardinality();
+        }
+
+        // sorts keys with their times from index left to index right inclusive
+        private void sort(int left, int right) {
+            while (left < right) {
+                long pivot = keys[(left + right) >>> 1];
+                int i = left;
+                int j = right;
+                while (i <= j) {
+                    while (keys[i] < pivot) {
+                        i++;
+                    }
+                    while (keys[j] > pivot) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        long key = keys[i];
+                        keys[i] = keys[j];
+                        keys[j] = key;
+                        long time = times[i];
+                        times[i] = times[j];
+                        times[j] = time;
+                        i++;
+                        j--;
+                    }
+                }
+                if (j - left < right - i) { // recursion into the smaller part
+                    sort(left, j);
+                    left = i;
+                } else {
+                    sort(i, right);
+                    right = j;
+                }
+            }
+        }
+    }
+}
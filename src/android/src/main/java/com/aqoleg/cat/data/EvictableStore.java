@@ -0,0 +1,20 @@
+/*
+saved tiles of one map that can be deleted to free space, thread-safe
+ */
+package com.aqoleg.cat.data;
+
+import java.io.IOException;
+
+interface EvictableStore extends TileStore {
+    // saves time of the last use of the tile, forEach() visits the tile with this time
+    // returns false if the storage cannot keep the time with the tile, then it must be saved with saveUsed()
+    boolean touch(int z, int y, int x, long time);
+
+    // saves time of the last use of the tiles, that touch() could not save, keys - z << 40 | y << 20 | x
+    void saveUsed(long[] keys, int count, long time);
+
+    // calls visitor for each saved tile
+    void forEach(Files.TileVisitor visitor);
+
+    void delete(int z, int y, int x) throws IOException;
+}
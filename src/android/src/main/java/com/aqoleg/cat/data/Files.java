@@ -5,27 +5,45 @@ files:
 /cat/                 // app's folder in the storage root
  .nomedia
  log.txt
+ download.txt         // optional, state of the unfinished region download
+ pins.txt             // optional, pinned areas which tiles are not deleted, one json for each line
+ metrics.txt          // optional, saved metrics of the tile pipeline, one block for each saving, starts with date
  maps/
   mapName/            // map1, map2, ...
    properties.txt     // optional
+   segments/          // optional, tiles are saved in SegmentStore instead of separate files
+   shared/            // optional, identical tiles saved once, sha1.extension
+   .failures          // optional, tiles missing on the server, one line for each update: key time count notFound
+   .fresh             // optional, freshness of tiles in segments, one line for each update: key time etag lastModified
    z/                 // 0 ... 18
     y/                // 0 ... 2^z-1
-     x.extension      // /cat/maps/myMap/10/4/4.png or /maps/otherMap/11/40/48.jpeg
+     x.extension      // /cat/maps/myMap/10/4/4.png or /maps/otherMap/11/40/48.webp, DirectoryStore
+     .fresh           // optional, freshness of tiles, one line for each update: x time etag lastModified
+     .links           // optional, tiles saved in shared/, one line for each update: x name
+  mapName.mbtiles     // map in one sqlite file, MBTilesStore
+  mapName.pack        // immutable map in one file, PackStore
  tracks/
   trackName.gpx       // track1, track2, ...
   current/
    trackName.tmp      // currently writing track (unclosed)
+
+tiles of each map are read and saved with its TileStore
  */
 package com.aqoleg.cat.data;
 
 import android.os.Environment;
+import com.aqoleg.cat.utils.Metrics;
 
 import java.io.*;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Files {
     private static final String mapPropertiesFileName = "properties.txt";
+    private static final String freshnessFileName = ".fresh";
+    private static final String failuresFileName = ".failures";
+    private static final int maxTouchedTiles = 256; // saved after this number
     private static final SimpleDateFormat currentTrackFileName =
             new SimpleDateFormat("yyyy-MM-dd'T'HH-mm-ss'.tmp'", Locale.ENGLISH);
     // 2023-01-20T11-28-00.tmp in the local time zone
@@ -33,7 +51,26 @@ public class Files {
     private static Files files; // singleton
 
     private final HashSet<String> tags = new HashSet<>();
+    private final HashMap<String, TileStore> tileStores = new HashMap<>(); // map name - store, synchronized
+    // map name - keys z << 40 | y << 20 | x of tiles used since the last saving, synchronized
+    private final HashMap<String, HashSet<Long>> touchedTiles = new HashMap<>();
+    // map name - (key z << 40 | y << 20 | x - the last failure of downloading since saving), loaded maps
+    private final HashMap<String, HashMap<Long, Failure>> failures = new HashMap<>();
+    // y folder path - (x - freshness), last used rows
+    private final LinkedHashMap<String, HashMap<Long, Freshness>> freshnessRows =
+            new LinkedHashMap<String, HashMap<Long, Freshness>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(java.util.Map.Entry<String, HashMap<Long, Freshness>> eldest) {
+                    return size() > 64;
+                }
+            };
+    // map name - (key z << 40 | y << 20 | x - freshness), loaded maps with segments, they have no y folders
+    private final HashMap<String, HashMap<Long, Freshness>> segmentFreshness = new HashMap<>();
+    private final AtomicLong tileSaves = new AtomicLong(); // number of saved tiles since the start
     private final File log;
+    private final File download;
+    private final File pins;
+    private final File metrics;
     private final File maps;
     private final File tracks;
     private final File currentTrack;
@@ -52,6 +89,9 @@ public class Files {
             }
         }
         log = new File(root, "log.txt");
+        download = new File(root, "download.txt");
+        pins = new File(root, "pins.txt");
+        metrics = new File(root, "metrics.txt");
         maps = new File(root, "maps");
         if (!maps.isDirectory()) {
             if (!maps.mkdirs()) {
@@ -91,7 +131,7 @@ public class Files {
     }
 
     // if this tag is the first tag since the app launch, appends the msg in the end of the log.txt
-    public void logOnce(String tag, String msg) {
+    public synchronized void logOnce(String tag, String msg) {
         if (!tags.contains(tag)) {
             tags.add(tag);
             log(msg);
@@ -99,7 +139,7 @@ public class Files {
     }
 
     // appends msg in the end of log.txt
-    public void log(String msg) {
+    public synchronized void log(String msg) {
         Writer writer = null;
         try {
             writer = new FileWriter(log, true).append(msg).append('\n').append('\n');
@@ -114,7 +154,127 @@ public class Files {
         }
     }
 
-    // returns sorted list of names of map folders
+    // returns state of the region download or null
+    public String readDownload() {
+        if (!download.isFile()) {
+            return null;
+        }
+        StringBuilder builder = new StringBuilder();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(download));
+            String line = reader.readLine();
+            while (line != null) {
+                builder.append(line);
+                line = reader.readLine();
+            }
+        } catch (IOException e) {
+            log("cannot read " + download.getAbsolutePath() + ": " + e);
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return builder.toString();
+    }
+
+    // saves state of the region download, deletes it if state == null
+    public void saveDownload(String state) {
+        if (state == null) {
+            if (download.exists() && !download.delete()) {
+                log("cannot delete " + download.getAbsolutePath());
+            }
+            return;
+        }
+        Writer writer = null;
+        try {
+            writer = new FileWriter(download).append(state);
+        } catch (IOException e) {
+            logOnce("Files.saveDownload", "cannot write " + download.getAbsolutePath() + ": " + e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    // returns pinned areas, one json for each area
+    public ArrayList<String> readPins() {
+        ArrayList<String> arrayList = new ArrayList<>();
+        if (!pins.isFile()) {
+            return arrayList;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(pins));
+            String line = reader.readLine();
+            while (line != null) {
+                if (!line.isEmpty()) {
+                    arrayList.add(line);
+                }
+                line = reader.readLine();
+            }
+        } catch (IOException e) {
+            log("cannot read " + pins.getAbsolutePath() + ": " + e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return arrayList;
+    }
+
+    // saves pinned areas, one json without line breaks for each area
+    public void savePins(ArrayList<String> areas) {
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new FileWriter(pins));
+            for (String area : areas) {
+                writer.append(area).append('\n');
+            }
+        } catch (IOException e) {
+            log("cannot write " + pins.getAbsolutePath() + ": " + e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    // appends metrics in the end of metrics.txt after the current date, returns false if it cannot be written
+    public boolean saveMetrics(String text) {
+        Writer writer = null;
+        try {
+            String date = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.ENGLISH).format(new Date());
+            writer = new FileWriter(metrics, true).append(date).append('\n').append(text).append('\n');
+        } catch (IOException e) {
+            log("cannot write " + metrics.getAbsolutePath() + ": " + e);
+            return false;
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return true;
+    }
+
+    // returns sorted list of names of map folders, mbtiles and pack files
     public ArrayList<String> getMapNames() {
         ArrayList<String> arrayList = new ArrayList<>();
         String[] list = maps.list();
@@ -124,7 +284,9 @@ public class Files {
         }
         Arrays.sort(list);
         for (String s : list) {
-            if (new File(maps, s).isDirectory()) {
+            if (new File(maps, s).isDirectory()
+                    || s.endsWith(MBTilesStore.extension)
+                    || s.endsWith(PackStore.extension)) {
                 arrayList.add(s);
             }
         }
@@ -166,6 +328,12 @@ public class Files {
     // returns properties, or empty string if map contains no properties, or null if there is no such map
     String readMapProperties(String mapName) {
         File mapDir = new File(maps, mapName);
+        if (mapName.endsWith(MBTilesStore.extension) && mapDir.isFile()) {
+            return ((MBTilesStore) getTileStore(mapName)).getProperties();
+        }
+        if (mapName.endsWith(PackStore.extension) && mapDir.isFile()) {
+            return ((PackStore) getTileStore(mapName)).getProperties();
+        }
         if (!mapDir.isDirectory()) {
             return null;
         }
@@ -195,54 +363,232 @@ public class Files {
         return builder.toString();
     }
 
-    // extension 'jpeg' or 'png'
-    public void saveTile(byte[] tileBytes, String mapName, int z, int y, int x, String extension) {
-        File yDir = new File(maps, mapName + File.separator + z + File.separator + y);
-        if (!yDir.isDirectory() && !yDir.mkdirs()) {
-            logOnce("Files.saveFile.0", "cannot create " + yDir.getAbsolutePath());
+    // saves new tiles of the map in segments, tiles saved as separate files are still available
+    void enableSegments(String mapName) {
+        synchronized (tileStores) {
+            if (tileStores.get(mapName) instanceof SegmentStore) {
+                return;
+            }
+            File segments = new File(maps, mapName + File.separator + SegmentStore.dirName);
+            if (!segments.isDirectory() && !segments.mkdirs()) {
+                logOnce("Files.enableSegments", "cannot create " + segments.getAbsolutePath());
+                return;
+            }
+            tileStores.remove(mapName);
         }
-        FileOutputStream stream = null;
+    }
+
+    // saves the first length bytes of tileBytes, extension 'jpeg', 'png' or 'webp'
+    public void saveTile(byte[] tileBytes, int length, String mapName, int z, int y, int x, String extension) {
         try {
-            stream = new FileOutputStream(new File(yDir, x + "." + extension));
-            stream.write(tileBytes);
+            long startNs = System.nanoTime();
+            getTileStore(mapName).save(tileBytes, length, z, y, x, extension);
+            tileSaves.incrementAndGet();
+            Metrics.recordSince(Metrics.saveMs, startNs);
+            clearTileFailure(mapName, z, y, x);
         } catch (IOException e) {
-            logOnce("Files.saveTile.1", "cannot save tile in " + yDir.getAbsolutePath() + ": " + e);
-        } finally {
-            if (stream != null) {
-                try {
-                    stream.close();
-                } catch (IOException ignored) {
+            logOnce("Files.saveTile", "cannot save tile " + z + "/" + y + "/" + x + " of " + mapName + ": " + e);
+        }
+    }
+
+    // returns number of the saved tiles since the start, it changes after each saveTile()
+    public long getTileSaves() {
+        return tileSaves.get();
+    }
+
+    // returns bytes of the saved tile or null
+    public byte[] readTile(String mapName, int z, int y, int x) {
+        try {
+            long startNs = System.nanoTime();
+            byte[] bytes = getTileStore(mapName).read(z, y, x);
+            Metrics.recordSince(Metrics.readMs, startNs);
+            return bytes;
+        } catch (IOException e) {
+            logOnce("Files.readTile", "cannot read tile " + z + "/" + y + "/" + x + " of " + mapName + ": " + e);
+            return null;
+        }
+    }
+
+    // returns stream of the saved tile or null, stream is in memory, supports mark() and does not need to be closed
+    public InputStream openTile(String mapName, int z, int y, int x) {
+        try {
+            long startNs = System.nanoTime();
+            InputStream inputStream = getTileStore(mapName).open(z, y, x);
+            Metrics.recordSince(Metrics.readMs, startNs);
+            return inputStream;
+        } catch (IOException e) {
+            logOnce("Files.openTile", "cannot read tile " + z + "/" + y + "/" + x + " of " + mapName + ": " + e);
+            return null;
+        }
+    }
+
+    public boolean hasTile(String mapName, int z, int y, int x) {
+        return getTileStore(mapName).contains(z, y, x);
+    }
+
+    // returns size of the saved tile in bytes or -1 if there is no such tile
+    public long getTileLength(String mapName, int z, int y, int x) {
+        return getTileStore(mapName).getLength(z, y, x);
+    }
+
+    // returns id of the bytes shared with other identical tiles, the same for all of them, or 0 if it is not shared
+    public long getTileContentId(String mapName, int z, int y, int x) {
+        return getTileStore(mapName).getContentId(z, y, x);
+    }
+
+    // remembers the use of the saved tile, saves the time of the last use later together with other tiles
+    public void touchTile(String mapName, int z, int y, int x) {
+        boolean save = false;
+        synchronized (touchedTiles) {
+            HashSet<Long> tiles = touchedTiles.get(mapName);
+            if (tiles == null) {
+                tiles = new HashSet<>();
+                touchedTiles.put(mapName, tiles);
+            }
+            if (tiles.add(((long) z << 40) | ((long) y << 20) | x) && tiles.size() >= maxTouchedTiles) {
+                save = true;
+            }
+        }
+        if (save) {
+            saveTouchedTiles();
+        }
+    }
+
+    // saves the time of the last use of the touched tiles, it is used as the time of the tile in TileVisitor
+    public void saveTouchedTiles() {
+        HashMap<String, HashSet<Long>> tiles;
+        synchronized (touchedTiles) {
+            tiles = new HashMap<>(touchedTiles);
+            touchedTiles.clear();
+        }
+        long time = System.currentTimeMillis();
+        for (java.util.Map.Entry<String, HashSet<Long>> entry : tiles.entrySet()) {
+            TileStore tileStore = getTileStore(entry.getKey());
+            if (!(tileStore instanceof EvictableStore)) {
+                continue;
+            }
+            long[] notTouched = new long[entry.getValue().size()]; // keys of the tiles, that keep no time
+            int notTouchedCount = 0;
+            for (long key : entry.getValue()) {
+                int z = (int) (key >>> 40);
+                int y = (int) (key >>> 20) & 0xFFFFF;
+                int x = (int) key & 0xFFFFF;
+                synchronized (this) {
+                    if (getFreshness(entry.getKey(), z, y, x) == null) {
+                        // time of saving is replaced by the time of use, keep it as freshness
+                        long savedTime = tileStore.getTime(z, y, x);
+                        if (savedTime != 0) {
+                            saveTileFreshness(entry.getKey(), z, y, x, new Freshness(savedTime, null, null));
+                        }
+                    }
+                }
+                if (!((EvictableStore) tileStore).touch(z, y, x, time)) {
+                    notTouched[notTouchedCount++] = key;
                 }
             }
+            if (notTouchedCount > 0) {
+                ((EvictableStore) tileStore).saveUsed(notTouched, notTouchedCount, time);
+            }
         }
     }
 
-    // returns tile absolute path or null
-    public String getTilePath(String mapName, int z, int y, int x) {
-        String path = mapName + File.separator + z + File.separator + y + File.separator + x;
-        File file = new File(maps, path + ".png");
-        if (file.isFile()) {
-            return file.getAbsolutePath();
+    // calls visitor for each saved tile of the map, returns false if tiles of this map cannot be deleted
+    public boolean forEachTile(String mapName, TileVisitor visitor) {
+        TileStore tileStore = getTileStore(mapName);
+        if (!(tileStore instanceof EvictableStore)) {
+            return false;
         }
-        file = new File(maps, path + ".jpeg");
-        if (file.isFile()) {
-            return file.getAbsolutePath();
+        ((EvictableStore) tileStore).forEach(visitor);
+        return true;
+    }
+
+    // deletes the saved tile, if tiles of this map can be deleted
+    public void deleteTile(String mapName, int z, int y, int x) {
+        TileStore tileStore = getTileStore(mapName);
+        if (tileStore instanceof EvictableStore) {
+            try {
+                ((EvictableStore) tileStore).delete(z, y, x);
+            } catch (IOException e) {
+                logOnce("Files.deleteTile", "cannot delete " + z + "/" + y + "/" + x + " of " + mapName + ": " + e);
+            }
+        }
+    }
+
+    // returns freshness of the saved tile or null, if there is no such tile
+    public synchronized Freshness getTileFreshness(String mapName, int z, int y, int x) {
+        Freshness freshness = getFreshness(mapName, z, y, x);
+        if (freshness == null) {
+            long time = getTileStore(mapName).getTime(z, y, x);
+            if (time != 0) {
+                freshness = new Freshness(time, null, null); // saved without freshness
+            }
+        }
+        return freshness;
+    }
+
+    // saves current time as the time of downloading or validation of the tile
+    // etag, lastModified - headers of the response or null
+    public synchronized void saveTileFreshness(String mapName, int z, int y, int x, String etag, String lastModified) {
+        saveTileFreshness(mapName, z, y, x, new Freshness(System.currentTimeMillis(), etag, lastModified));
+    }
+
+    // returns the last failure of downloading the tile since its saving or null
+    public synchronized Failure getTileFailure(String mapName, int z, int y, int x) {
+        return getFailures(mapName).get(((long) z << 40) | ((long) y << 20) | x);
+    }
+
+    // remembers failure of downloading the tile, notFound - server has no such tile
+    // failures are kept until the tile is saved, only notFound failures are saved in the storage
+    public synchronized void saveTileFailure(String mapName, int z, int y, int x, boolean notFound) {
+        long key = ((long) z << 40) | ((long) y << 20) | x;
+        HashMap<Long, Failure> mapFailures = getFailures(mapName);
+        Failure previous = mapFailures.get(key);
+        Failure failure = new Failure(System.currentTimeMillis(), previous == null ? 1 : previous.count + 1, notFound);
+        mapFailures.put(key, failure);
+        if (notFound || (previous != null && previous.notFound)) {
+            appendFailure(mapName, failure.toLine(key));
         }
-        return null;
+    }
+
+    // writes saved tiles of the map in the new pack, returns name of the pack map or null
+    // tiles - keys z << 40 | y << 20 | x
+    public String exportPack(Map map, long[] tiles) {
+        String packNameBase = map.name;
+        if (packNameBase.endsWith(PackStore.extension) || packNameBase.endsWith(MBTilesStore.extension)) {
+            packNameBase = packNameBase.substring(0, packNameBase.lastIndexOf('.'));
+        }
+        String packName = packNameBase + PackStore.extension;
+        for (int i = 1; new File(maps, packName).exists(); i++) {
+            packName = packNameBase + '_' + i + PackStore.extension;
+        }
+        File tmp = new File(maps, packName + ".tmp");
+        try {
+            PackStore.write(tmp, map.getReadOnlyProperties(), getTileStore(map.name), tiles);
+            if (!tmp.renameTo(new File(maps, packName))) {
+                throw new IOException("cannot rename " + tmp.getAbsolutePath());
+            }
+            return packName;
+        } catch (IOException e) {
+            log("cannot export " + map.name + " to " + packName + ": " + e);
+            if (tmp.exists() && !tmp.delete()) {
+                log("cannot delete " + tmp.getAbsolutePath());
+            }
+            return null;
+        }
+    }
+
+    // returns tile absolute path or null, if there is no such tile or it is not saved as a separate file
+    public String getTilePath(String mapName, int z, int y, int x) {
+        return getTileStore(mapName).getPath(z, y, x);
     }
 
     // returns tile path, if exists, or tile path without extension
     public String getTilePathOrName(String mapName, int z, int y, int x) {
-        String path = mapName + File.separator + z + File.separator + y + File.separator + x;
-        File file = new File(maps, path + ".png");
-        if (file.isFile()) {
-            return file.getAbsolutePath();
+        String path = getTilePath(mapName, z, y, x);
+        if (path != null) {
+            return path;
         }
-        file = new File(maps, path + ".jpeg");
-        if (file.isFile()) {
-            return file.getAbsolutePath();
-        }
-        return new File(maps, path).getAbsolutePath();
+        return new File(maps, mapName + File.separator + z + File.separator + y + File.separator + x).getAbsolutePath();
     }
 
     // returns reverse sorted list of names of track files which ends with '.gpx'
@@ -302,4 +648,282 @@ public class Files {
             log("cannot move current track " + file.getAbsolutePath());
         }
     }
-}
\ No newline at end of file
+
+
+    // returns store of the map, creates it on the first use
+    private TileStore getTileStore(String mapName) {
+        synchronized (tileStores) {
+            TileStore tileStore = tileStores.get(mapName);
+            if (tileStore == null) {
+                File mapDir = new File(maps, mapName);
+                if (mapDir.isFile() && mapName.endsWith(MBTilesStore.extension)) {
+                    tileStore = new MBTilesStore(mapDir);
+                } else if (mapDir.isFile() && mapName.endsWith(PackStore.extension)) {
+                    tileStore = new PackStore(mapDir);
+                } else if (new File(mapDir, SegmentStore.dirName).isDirectory()) {
+                    tileStore = new SegmentStore(mapDir);
+                } else {
+                    tileStore = new DirectoryStore(mapDir);
+                }
+                tileStores.put(mapName, tileStore);
+            }
+            return tileStore;
+        }
+    }
+
+    private synchronized void saveTileFreshness(String mapName, int z, int y, int x, Freshness freshness) {
+        if (!new File(maps, mapName).isDirectory()) { // mbtiles or pack file
+            getFreshnessRow(mapName, z, y).put((long) x, freshness);
+            return;
+        }
+        File file;
+        String line;
+        if (getTileStore(mapName) instanceof SegmentStore) {
+            long key = ((long) z << 40) | ((long) y << 20) | x;
+            getSegmentFreshness(mapName).put(key, freshness);
+            file = new File(maps, mapName + File.separator + freshnessFileName);
+            line = freshness.toLine(key);
+        } else {
+            getFreshnessRow(mapName, z, y).put((long) x, freshness);
+            File yDir = new File(maps, mapName + File.separator + z + File.separator + y);
+            if (!yDir.isDirectory() && !yDir.mkdirs()) {
+                logOnce("Files.saveTileFreshness.0", "cannot create " + yDir.getAbsolutePath());
+            }
+            file = new File(yDir, freshnessFileName);
+            line = freshness.toLine(x);
+        }
+        Writer writer = null;
+        try {
+            writer = new FileWriter(file, true).append(line);
+        } catch (IOException e) {
+            logOnce("Files.saveTileFreshness.1", "cannot save freshness in " + file.getAbsolutePath() + ": " + e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    // returns saved freshness of the tile or null
+    private Freshness getFreshness(String mapName, int z, int y, int x) {
+        if (getTileStore(mapName) instanceof SegmentStore) {
+            Freshness freshness = getSegmentFreshness(mapName).get(((long) z << 40) | ((long) y << 20) | x);
+            if (freshness != null) {
+                return freshness;
+            }
+            // tile can be saved as a separate file before enabling segments
+        }
+        return getFreshnessRow(mapName, z, y).get((long) x);
+    }
+
+    private synchronized void clearTileFailure(String mapName, int z, int y, int x) {
+        long key = ((long) z << 40) | ((long) y << 20) | x;
+        Failure failure = getFailures(mapName).remove(key);
+        if (failure != null && failure.notFound) {
+            appendFailure(mapName, new Failure(System.currentTimeMillis(), 0, false).toLine(key));
+        }
+    }
+
+    private void appendFailure(String mapName, String line) {
+        File mapDir = new File(maps, mapName);
+        if (!mapDir.isDirectory()) { // mbtiles or pack file
+            return;
+        }
+        File file = new File(mapDir, failuresFileName);
+        Writer writer = null;
+        try {
+            writer = new FileWriter(file, true).append(line);
+        } catch (IOException e) {
+            logOnce("Files.appendFailure", "cannot write " + file.getAbsolutePath() + ": " + e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    // returns failures of the map, reads and compacts the file if needed
+    private HashMap<Long, Failure> getFailures(String mapName) {
+        HashMap<Long, Failure> mapFailures = failures.get(mapName);
+        if (mapFailures != null) {
+            return mapFailures;
+        }
+        mapFailures = new HashMap<>();
+        failures.put(mapName, mapFailures);
+        File file = new File(maps, mapName + File.separator + failuresFileName);
+        if (!file.isFile()) {
+            return mapFailures;
+        }
+        int lines = 0;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            String line = reader.readLine();
+            while (line != null) {
+                String[] values = line.split("\t", -1);
+                if (values.length == 4) {
+                    long key = Long.parseLong(values[0]);
+                    int count = Integer.parseInt(values[2]);
+                    if (count == 0) { // tile has been saved
+                        mapFailures.remove(key);
+                    } else {
+                        mapFailures.put(key, new Failure(Long.parseLong(values[1]), count, values[3].equals("1")));
+                    }
+                    lines++;
+                }
+                line = reader.readLine();
+            }
+        } catch (IOException | NumberFormatException e) {
+            logOnce("Files.getFailures.0", "cannot read " + file.getAbsolutePath() + ": " + e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        if (lines > mapFailures.size() * 2 + 8) { // rewrite without outdated lines
+            Writer writer = null;
+            try {
+                writer = new BufferedWriter(new FileWriter(file));
+                for (java.util.Map.Entry<Long, Failure> entry : mapFailures.entrySet()) {
+                    writer.append(entry.getValue().toLine(entry.getKey()));
+                }
+            } catch (IOException e) {
+                logOnce("Files.getFailures.1", "cannot write " + file.getAbsolutePath() + ": " + e);
+            } finally {
+                if (writer != null) {
+                    try {
+                        writer.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+        return mapFailures;
+    }
+
+    // returns x - freshness of the y folder, reads and compacts the file if needed
+    private HashMap<Long, Freshness> getFreshnessRow(String mapName, int z, int y) {
+        String yPath = mapName + File.separator + z + File.separator + y;
+        HashMap<Long, Freshness> row = freshnessRows.get(yPath);
+        if (row == null) {
+            row = readFreshness(new File(maps, yPath + File.separator + freshnessFileName));
+            freshnessRows.put(yPath, row);
+        }
+        return row;
+    }
+
+    // returns key - freshness of the map with segments, reads and compacts the file if needed
+    private HashMap<Long, Freshness> getSegmentFreshness(String mapName) {
+        HashMap<Long, Freshness> mapFreshness = segmentFreshness.get(mapName);
+        if (mapFreshness == null) {
+            mapFreshness = readFreshness(new File(maps, mapName + File.separator + freshnessFileName));
+            segmentFreshness.put(mapName, mapFreshness);
+        }
+        return mapFreshness;
+    }
+
+    // returns x or key - freshness from the file, rewrites the file without outdated lines if needed
+    private HashMap<Long, Freshness> readFreshness(File file) {
+        HashMap<Long, Freshness> freshness = new HashMap<>();
+        if (!file.isFile()) {
+            return freshness;
+        }
+        int lines = 0;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            String line = reader.readLine();
+            while (line != null) {
+                String[] values = line.split("\t", -1);
+                if (values.length == 4) {
+                    freshness.put(Long.parseLong(values[0]), new Freshness(
+                            Long.parseLong(values[1]),
+                            values[2].isEmpty() ? null : values[2],
+                            values[3].isEmpty() ? null : values[3]
+                    ));
+                    lines++;
+                }
+                line = reader.readLine();
+            }
+        } catch (IOException | NumberFormatException e) {
+            logOnce("Files.readFreshness.0", "cannot read " + file.getAbsolutePath() + ": " + e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        if (lines > freshness.size() * 2 + 8) { // rewrite without outdated lines
+            Writer writer = null;
+            try {
+                writer = new BufferedWriter(new FileWriter(file));
+                for (java.util.Map.Entry<Long, Freshness> entry : freshness.entrySet()) {
+                    writer.append(entry.getValue().toLine(entry.getKey()));
+                }
+            } catch (IOException e) {
+                logOnce("Files.readFreshness.1", "cannot write " + file.getAbsolutePath() + ": " + e);
+            } finally {
+                if (writer != null) {
+                    try {
+                        writer.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+        return freshness;
+    }
+
+
+    public interface TileVisitor {
+        // length - bytes, time - unix time in ms of saving or the last use
+        void visit(int z, int y, int x, long length, long time);
+    }
+
+    public static class Freshness {
+        public final long time; // unix time in ms of downloading or validation
+        public final String etag; // or null
+        public final String lastModified; // or null
+
+        private Freshness(long time, String etag, String lastModified) {
+            this.time = time;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+
+        // key - x in the y folder or the whole key of the tile
+        private String toLine(long key) {
+            return key + "\t" + time + "\t" + (etag == null ? "" : etag) + "\t"
+                    + (lastModified == null ? "" : lastModified) + "\n";
+        }
+    }
+
+    public static class Failure {
+        public final long time; // unix time in ms of the last failure
+        public final int count; // number of failures in a row
+        public final boolean notFound; // server has no such tile
+
+        private Failure(long time, int count, boolean notFound) {
+            this.time = time;
+            this.count = count;
+            this.notFound = notFound;
+        }
+
+
+        private String toLine(long key) {
+            return key + "\t" + time + "\t" + count + "\t" + (notFound ? 1 : 0) + "\n";
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+tiles of one map in the sqlite mbtiles file /cat/maps/mapName.mbtiles, thread-safe
+tile_row is in the tms order, y = 2^z - 1 - tile_row
+properties of the map can be in the metadata as 'properties', the same json as properties.txt
+downloaded tiles are saved in the file, if it is writable
+tiles are read with the compiled statements, the blob is returned as the file descriptor of the shared memory
+
+https://github.com/mapbox/mbtiles-spec
+ */
+package com.aqoleg.cat.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.ParcelFileDescriptor;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+class MBTilesStore implements TileStore {
+    static final String extension = ".mbtiles";
+    private static final String where = " WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?";
+
+    private final SQLiteDatabase database; // or null if the file cannot be opened
+    private final SQLiteStatement selectLength; // synchronized
+    private final SQLiteStatement selectTile; // synchronized on selectLength
+    private final SQLiteStatement insertTile; // or null if the file is read-only, synchronized
+
+    MBTilesStore(File file) {
+        SQLiteDatabase database = null;
+        SQLiteStatement selectLength = null;
+        SQLiteStatement selectTile = null;
+        SQLiteStatement insertTile = null;
+        try {
+            try {
+                database = SQLiteDatabase.openDatabase(
+                        file.getAbsolutePath(),
+                        null,
+                        SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.NO_LOCALIZED_COLLATORS
+                );
+                insertTile = database.compileStatement("INSERT OR REPLACE INTO tiles "
+                        + "(zoom_level, tile_column, tile_row, tile_data) VALUES (?, ?, ?, ?)");
+            } catch (SQLiteException e) { // read-only file or tiles is a view
+                if (database == null) {
+                    database = SQLiteDatabase.openDatabase(
+                            file.getAbsolutePath(),
+                            null,
+                            SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS
+                    );
+                }
+            }
+            selectLength = database.compileStatement("SELECT length(tile_data) FROM tiles" + where);
+            selectTile = database.compileStatement("SELECT tile_data FROM tiles" + where);
+        } catch (SQLiteException e) {
+            Files.getInstance().log("cannot open " + file.getAbsolutePath() + ": " + e);
+            if (database != null) {
+                database.close();
+                database = null;
+            }
+        }
+        this.database = database;
+        this.selectLength = selectLength;
+        this.selectTile = selectTile;
+        this.insertTile = insertTile;
+    }
+
+
+    @Override
+    public boolean contains(int z, int y, int x) {
+        return getLength(z, y, x) >= 0;
+    }
+
+    @Override
+    public byte[] read(int z, int y, int x) throws IOException {
+        if (database == null) {
+            return null;
+        }
+        synchronized (selectLength) {
+            DataInputStream stream = null;
+            try {
+                bindTile(selectLength, z, y, x);
+                byte[] bytes = new byte[(int) selectLength.simpleQueryForLong()];
+                bindTile(selectTile, z, y, x);
+                ParcelFileDescriptor descriptor = selectTile.simpleQueryForBlobFileDescriptor();
+                if (descriptor == null) {
+                    return null;
+                }
+                stream = new DataInputStream(new ParcelFileDescriptor.AutoCloseInputStream(descriptor));
+                stream.readFully(bytes);
+                return bytes;
+            } catch (SQLiteDoneException e) { // no such tile
+                return null;
+            } catch (SQLiteException e) {
+                throw new IOException(e.toString());
+            } finally {
+                if (stream != null) {
+                    try {
+                        stream.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public InputStream open(int z, int y, int x) throws IOException {
+        byte[] bytes = read(z, y, x);
+        return bytes == null ? null : new ByteArrayInputStream(bytes);
+    }
+
+    @Override
+    public long getLength(int z, int y, int x) {
+        if (database == null) {
+            return -1;
+        }
+        synchronized (selectLength) {
+            try {
+                bindTile(selectLength, z, y, x);
+                return selectLength.simpleQueryForLong();
+            } catch (SQLiteDoneException e) { // no such tile
+                return -1;
+            } catch (SQLiteException e) {
+                Files.getInstance().logOnce("MBTilesStore.getLength", "cannot read " + database.getPath() + ": " + e);
+                return -1;
+            }
+        }
+    }
+
+    @Override
+    public long getTime(int z, int y, int x) {
+        return 0;
+    }
+
+    @Override
+    public String getPath(int z, int y, int x) {
+        return null;
+    }
+
+    @Override
+    public long getContentId(int z, int y, int x) {
+        return 0;
+    }
+
+    @Override
+    public void save(byte[] tileBytes, int length, int z, int y, int x, String extension) throws IOException {
+        if (insertTile == null) {
+            throw new IOException("read-only file");
+        }
+        synchronized (insertTile) {
+            try {
+                bindTile(insertTile, z, y, x);
+                insertTile.bindBlob(4, length == tileBytes.length ? tileBytes : Arrays.copyOf(tileBytes, length));
+                insertTile.executeInsert();
+            } catch (SQLiteException e) {
+                throw new IOException(e.toString());
+            }
+        }
+    }
+
+
+    // returns properties from the metadata, or empty string if there is no properties
+    String getProperties() {
+        if (database == null) {
+            return "";
+        }
+        SQLiteStatement statement = null;
+        try {
+            statement = database.compileStatement("SELECT value FROM metadata WHERE name = 'properties'");
+            return statement.simpleQueryForString();
+        } catch (SQLiteException e) { // including SQLiteDoneException, no properties
+            return "";
+        } finally {
+            if (statement != null) {
+                statement.close();
+            }
+        }
+    }
+
+
+    private static void bindTile(SQLiteStatement statement, int z, int y, int x) {
+        statement.bindLong(1, z);
+        statement.bindLong(2, x);
+        statement.bindLong(3, (1 << z) - 1 - y);
+    }
+}
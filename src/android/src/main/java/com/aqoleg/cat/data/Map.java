@@ -1,36 +1,101 @@
 /*
 creates and reads maps
+map is a folder, mapName.mbtiles file with properties in the metadata or mapName.pack file
 
 properties.txt json file:
 {
-   "url": "https://example/x=%1$d/y=%2$d/z=%3$d",   // optional, if this is not specified, cannot be downloaded
-   "projection": "ellipsoid"                        // optional, if this is not specified, use spherical
+   "url": "https://example/x={x}/y={y}/z={z}",      // optional, if this is not specified, cannot be downloaded
+                                                    // or array of urls of the endpoints, see UrlTemplate
+   "subdomains": "abc",                             // optional, for {s} in the url, "abc" if this is not specified
+   "projection": "ellipsoid",                       // optional, if this is not specified, use spherical
+   "maxAge": 2592000,                               // optional, seconds before revalidation of tiles, 0 - never
+   "storage": "segments",                           // optional, save tiles in segments instead of separate files
+   "quota": 512,                                    // optional, MB of saved tiles before deleting unused ones
+   "webp": 80,                                      // optional, save downloaded tiles as webp with quality 1-100
+   "layers": ["arcsat", "hillshade"]                // optional, names of maps drawn one over another
 }
+webp quality 100 is lossless since android 10
+layered map shows its layers from the bottom one, tiles of each layer are read and downloaded by the layer map
+layers of the layers are ignored
+
+tiles are spread across endpoints, endpoints are shared by all maps with the same host
+endpoint that has failed is skipped until its retry time, endpoint much slower than the fastest one is skipped
 
 https://json.org
  */
 package com.aqoleg.cat.data;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.IllegalFormatException;
+import java.util.ArrayList;
+import java.util.HashMap;
 
 public class Map {
     private static final String jsonUrl = "url";
+    private static final String jsonSubdomains = "subdomains";
+    private static final String defaultSubdomains = "abc";
     private static final String jsonProjection = "projection";
     private static final String jsonProjectionEllipsoid = "ellipsoid";
+    private static final String jsonMaxAge = "maxAge";
+    private static final String jsonStorage = "storage";
+    private static final String jsonStorageSegments = "segments";
+    private static final String jsonQuota = "quota";
+    private static final String jsonWebp = "webp";
+    private static final String jsonLayers = "layers";
+    private static final long minRetryInterval = 1000; // ms, doubles after each failure
+    private static final long maxRetryInterval = 5 * 60 * 1000; // ms
+    private static final long latencyMargin = 50; // ms, endpoints within 2 * fastest + margin are used
+    private static final HashMap<String, Integer> ids = new HashMap<>(); // map name - map id
+    // host - endpoint, since the app launch, synchronized
+    private static final HashMap<String, Endpoint> endpoints = new HashMap<>();
 
     public final String name;
+    public final int id; // the same for all instances with the same name, since the app launch
     public final boolean ellipsoid;
-    private final String url; // can be null
+    public final long maxAge; // ms before revalidation of downloaded tiles, 0 if tiles never become stale
+    public final long quota; // bytes of saved tiles before deleting the least recently used ones, 0 if no limit
+    public final int webpQuality; // from 1 to 100 to save downloaded tiles as webp, 0 to save them as downloaded
+    public final Map[] layers; // maps drawn one over another from the bottom one, empty if this map is not layered
+    private final String[] urls; // can be empty
+    private final UrlTemplate[] templates; // one for each endpoint, can be empty
 
     private Map(String name, String url, boolean ellipsoid) {
+        this(name, new String[]{url}, defaultSubdomains, ellipsoid, 0, 0, 0, new Map[0]);
+    }
+
+    private Map(
+            String name,
+            String[] urls,
+            String subdomains,
+            boolean ellipsoid,
+            long maxAge,
+            long quota,
+            int webpQuality,
+            Map[] layers
+    ) {
         this.name = name;
-        this.url = url;
+        id = getId(name);
+        this.urls = urls;
+        ArrayList<UrlTemplate> templates = new ArrayList<>();
+        for (String url : urls) {
+            try {
+                for (UrlTemplate template : UrlTemplate.parse(url, subdomains)) {
+                    templates.add(template);
+                }
+            } catch (MalformedURLException e) {
+                Files.getInstance().logOnce("Map.Map", "incorrect url of " + name + ": " + url + ": " + e);
+            }
+        }
+        this.templates = templates.toArray(new UrlTemplate[templates.size()]);
         this.ellipsoid = ellipsoid;
+        this.maxAge = maxAge;
+        this.quota = quota;
+        this.webpQuality = webpQuality;
+        this.layers = layers;
     }
 
 
@@ -38,47 +103,47 @@ public class Map {
     static void addDefault() {
         new Map(
                 "mende",
-                "http://cat.aqoleg.com/maps/mende/%3$d/%2$d/%1$d.jpeg",
+                "http://cat.aqoleg.com/maps/mende/{z}/{y}/{x}.jpeg",
                 false
         ).save();
         new Map(
                 "osm",
-                "http://a.tile.openstreetmap.org/%3$d/%1$d/%2$d.png",
+                "http://{s}.tile.openstreetmap.org/{z}/{x}/{y}.png",
                 false
         ).save();
         new Map(
                 "otm",
-                "https://a.tile.opentopomap.org/%3$d/%1$d/%2$d.png",
+                "https://{s}.tile.opentopomap.org/{z}/{x}/{y}.png",
                 false
         ).save();
         new Map(
                 "topo",
-                "https://maps.marshruty.ru/ml.ashx?al=1&x=%1$d&y=%2$d&z=%3$d",
+                "https://maps.marshruty.ru/ml.ashx?al=1&x={x}&y={y}&z={z}",
                 false
         ).save();
         new Map(
                 "gsat",
-                "https://khms0.googleapis.com/kh?v=937&hl=en&x=%1$d&y=%2$d&z=%3$d",
+                "https://khms0.googleapis.com/kh?v=937&hl=en&x={x}&y={y}&z={z}",
                 false
         ).save();
         new Map(
                 "gmap",
-                "http://mt0.google.com/vt/lyrs=m&hl=en&x=%1$d&y=%2$d&z=%3$d",
+                "http://mt0.google.com/vt/lyrs=m&hl=en&x={x}&y={y}&z={z}",
                 false
         ).save();
         new Map(
                 "yasat",
-                "https://sat01.maps.yandex.net/tiles?l=sat&x=%1$d&y=%2$d&z=%3$d&g=Gagarin",
+                "https://sat01.maps.yandex.net/tiles?l=sat&x={x}&y={y}&z={z}&g=Gagarin",
                 true
         ).save();
         new Map(
                 "arcsat",
-                "https://services.arcgisonline.com/ArcGIS/rest/services/World_Imagery/MapServer/tile/%3$d/%2$d/%1$d",
+                "https://services.arcgisonline.com/ArcGIS/rest/services/World_Imagery/MapServer/tile/{z}/{y}/{x}",
                 false
         ).save();
         new Map(
                 "arctopo",
-                "https://services.arcgisonline.com/ArcGIS/rest/services/World_Topo_Map/MapServer/tile/%3$d/%2$d/%1$d",
+                "https://services.arcgisonline.com/ArcGIS/rest/services/World_Topo_Map/MapServer/tile/{z}/{y}/{x}",
                 false
         ).save();
     }
@@ -86,8 +151,8 @@ public class Map {
     // checks url, saves map, changes name if it exists, returns actual name or null
     public static String save(String name, String url, String projection) {
         try {
-            new URL(String.format(url, 1, 1, 1));
-        } catch (NullPointerException | IllegalFormatException | MalformedURLException e) {
+            UrlTemplate.parse(url, defaultSubdomains);
+        } catch (MalformedURLException e) {
             Files.getInstance().log("incorrect url of " + name + ": " + url + ": " + e);
             return null;
         }
@@ -104,6 +169,56 @@ public class Map {
 
     // if mapName == null or map directory does not exist, returns default map
     public static Map load(String mapName) {
+        return load(mapName, true);
+    }
+
+
+    // remembers that the host of this url has responded after ms
+    public static void reportResponse(URL url, long ms) {
+        synchronized (endpoints) {
+            Endpoint endpoint = getEndpoint(url.getHost());
+            endpoint.latency = endpoint.latency < 0 ? ms : (endpoint.latency * 7 + ms) / 8;
+            endpoint.failures = 0;
+            endpoint.retryTime = 0;
+        }
+    }
+
+    // remembers that the host of this url has not responded, skips it until the retry time
+    public static void reportFailure(URL url) {
+        synchronized (endpoints) {
+            Endpoint endpoint = getEndpoint(url.getHost());
+            long interval = Math.min(maxRetryInterval, minRetryInterval << Math.min(endpoint.failures, 16));
+            endpoint.failures++;
+            endpoint.retryTime = System.currentTimeMillis() + interval;
+        }
+    }
+
+
+    // returns url to download the tile from one of the endpoints or null
+    public URL getUrl(int z, int y, int x) {
+        if (templates.length == 0) {
+            return null;
+        }
+        UrlTemplate template = templates.length == 1 ? templates[0] : getTemplate(y, x);
+        try {
+            return new URL(template.expand(z, y, x));
+        } catch (MalformedURLException e) {
+            Files.getInstance().logOnce("Map.getUrl", "incorrect url of " + name + ": " + template + ": " + e);
+            return null;
+        }
+    }
+
+    // returns properties for the copy of the map that cannot be downloaded
+    String getReadOnlyProperties() {
+        if (!ellipsoid) {
+            return "";
+        }
+        return "{\n   \"" + jsonProjection + "\": \"" + jsonProjectionEllipsoid + "\"\n}";
+    }
+
+
+    // loads layers, if withLayers
+    private static Map load(String mapName, boolean withLayers) {
         if (mapName == null) {
             mapName = "osm";
         }
@@ -112,42 +227,122 @@ public class Map {
             mapName = "osm";
             properties = Files.getInstance().readMapProperties(mapName);
         }
-        String url = null;
+        ArrayList<String> urls = new ArrayList<>();
+        String subdomains = defaultSubdomains;
         boolean ellipsoid = false;
+        long maxAge = 0;
+        long quota = 0;
+        int webpQuality = 0;
+        ArrayList<Map> layers = new ArrayList<>();
         if (properties != null && !properties.isEmpty()) {
             try {
                 JSONObject json = new JSONObject(properties);
-                url = json.optString(jsonUrl, null);
+                JSONArray urlArray = json.optJSONArray(jsonUrl);
+                if (urlArray != null) {
+                    for (int i = 0; i < urlArray.length(); i++) {
+                        urls.add(urlArray.getString(i));
+                    }
+                } else if (json.has(jsonUrl)) {
+                    urls.add(json.getString(jsonUrl));
+                }
+                subdomains = json.optString(jsonSubdomains, defaultSubdomains);
                 ellipsoid = jsonProjectionEllipsoid.equals(json.optString(jsonProjection));
+                maxAge = Math.max(0, json.optLong(jsonMaxAge)) * 1000;
+                quota = Math.max(0, json.optLong(jsonQuota)) << 20;
+                webpQuality = Math.max(0, Math.min(100, json.optInt(jsonWebp)));
+                JSONArray layerArray = json.optJSONArray(jsonLayers);
+                for (int i = 0; withLayers && layerArray != null && i < layerArray.length(); i++) {
+                    String layerName = layerArray.getString(i);
+                    if (layerName.equals(mapName) || Files.getInstance().readMapProperties(layerName) == null) {
+                        Files.getInstance().logOnce("Map.load.layer", "no layer " + layerName + " of " + mapName);
+                    } else {
+                        layers.add(load(layerName, false));
+                    }
+                }
+                if (jsonStorageSegments.equals(json.optString(jsonStorage))) {
+                    Files.getInstance().enableSegments(mapName);
+                }
             } catch (JSONException e) {
                 Files.getInstance().logOnce("Map.load", "cannot read properties of " + mapName + ": " + e.toString());
             }
         }
-        return new Map(mapName, url, ellipsoid);
+        return new Map(
+                mapName,
+                urls.toArray(new String[urls.size()]),
+                subdomains,
+                ellipsoid,
+                maxAge,
+                quota,
+                webpQuality,
+                layers.toArray(new Map[layers.size()])
+        );
     }
 
-
-    // returns url to download the tile or null
-    public URL getUrl(int z, int y, int x) {
-        if (url == null) {
-            return null;
+    // call synchronized on endpoints
+    private static Endpoint getEndpoint(String host) {
+        Endpoint endpoint = endpoints.get(host);
+        if (endpoint == null) {
+            endpoint = new Endpoint();
+            endpoints.put(host, endpoint);
         }
-        try {
-            return new URL(String.format(url, x, y, z));
-        } catch (MalformedURLException e) {
-            Files.getInstance().logOnce("Map.getUrl", "incorrect url of " + name + ": " + url + ": " + e);
-            return null;
+        return endpoint;
+    }
+
+    private static synchronized int getId(String name) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            id = ids.size();
+            ids.put(name, id);
         }
+        return id;
     }
 
 
+    // returns template of the endpoint for this tile, neighbour tiles go to different endpoints
+    // skips failing endpoints and endpoints much slower than the fastest one, endpoints without responses are used
+    private UrlTemplate getTemplate(int y, int x) {
+        long time = System.currentTimeMillis();
+        synchronized (endpoints) {
+            long fastest = Long.MAX_VALUE; // latency of the fastest available measured endpoint
+            for (UrlTemplate template : templates) {
+                Endpoint endpoint = getEndpoint(template.host);
+                if (endpoint.retryTime <= time && endpoint.latency >= 0 && endpoint.latency < fastest) {
+                    fastest = endpoint.latency;
+                }
+            }
+            int first = (x + y) % templates.length;
+            UrlTemplate recovering = templates[first]; // if all endpoints are failing, the first one to retry
+            long recoveringTime = Long.MAX_VALUE;
+            for (int i = 0; i < templates.length; i++) {
+                UrlTemplate template = templates[(first + i) % templates.length];
+                Endpoint endpoint = getEndpoint(template.host);
+                if (endpoint.retryTime > time) {
+                    if (endpoint.retryTime < recoveringTime) {
+                        recovering = template;
+                        recoveringTime = endpoint.retryTime;
+                    }
+                } else if (endpoint.latency < 0 || endpoint.latency <= fastest * 2 + latencyMargin) {
+                    return template;
+                }
+            }
+            return recovering;
+        }
+    }
+
     private String save() {
         // JSON.toString() escapes '\' so it looks like : http:\/\/map
-        String properties = "{\n   \"" + jsonUrl + "\": \"" + url + '"';
+        String properties = "{\n   \"" + jsonUrl + "\": \"" + urls[0] + '"';
         if (ellipsoid) {
             properties += ",\n   \"" + jsonProjection + "\": \"" + jsonProjectionEllipsoid + '"';
         }
         properties += "\n}";
         return Files.getInstance().addMap(name, properties);
     }
-}
\ No newline at end of file
+
+
+    private static class Endpoint {
+        private long latency = -1; // ms, average of the last responses, -1 if unknown
+        private int failures; // since the last response
+        private long retryTime; // ms, endpoint is skipped before this time
+    }
+}
@@ -0,0 +1,269 @@
+/*
+tiles of one map in the immutable pack file /cat/maps/mapName.pack, thread-safe
+the whole file is mapped in memory, tile is found with the binary search and decoded from the mapped bytes
+
+pack file, up to 2 GB, big-endian:
+int magic
+int number of tiles
+int length of properties
+properties             // utf-8, the same json as properties.txt
+index                  // for each tile in ascending order of keys: long key, int offset, int length
+                       // key = z << 40 | y << 20 | x
+tiles                  // in the order of the index
+the index must be within the file, entries with tiles outside of the file are skipped as missing tiles
+ */
+package com.aqoleg.cat.data;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+class PackStore implements TileStore {
+    static final String extension = ".pack";
+    private static final int magic = 0x6361744b; // catK
+    private static final int entryBytes = 16;
+
+    private final MappedByteBuffer buffer; // or null if the file cannot be read, is not changed after mapping
+    private final String properties;
+    private final int count;
+    private final int indexStart;
+
+    PackStore(File file) {
+        MappedByteBuffer buffer = null;
+        String properties = "";
+        int count = 0;
+        int indexStart = 0;
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+            if (buffer.getInt(0) != magic) {
+                throw new IOException("unknown format");
+            }
+            count = buffer.getInt(4);
+            byte[] bytes = new byte[buffer.getInt(8)];
+            buffer.position(12);
+            buffer.get(bytes);
+            buffer.position(0);
+            properties = new String(bytes, "UTF-8");
+            indexStart = 12 + bytes.length;
+            if (count < 0 || indexStart + (long) count * entryBytes > buffer.capacity()) {
+                throw new IOException("truncated index");
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.getInstance().log("cannot open " + file.getAbsolutePath() + ": " + e);
+            buffer = null;
+        } finally {
+            if (randomAccessFile != null) {
+                try {
+                    randomAccessFile.close(); // mapping remains valid
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        this.buffer = buffer;
+        this.properties = properties;
+        this.count = count;
+        this.indexStart = indexStart;
+    }
+
+
+    // writes saved tiles in the new pack file, tiles - keys z << 40 | y << 20 | x, returns number of written tiles
+    static int write(File file, String properties, TileStore tileStore, long[] tiles) throws IOException {
+        tiles = tiles.clone();
+        Arrays.sort(tiles);
+        byte[] propertiesBytes = properties.getBytes("UTF-8");
+        int dataStart = 12 + propertiesBytes.length;
+        ByteBuffer index = ByteBuffer.allocate(tiles.length * entryBytes);
+        RandomAccessFile randomAccessFile = null;
+        int count = 0;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            randomAccessFile.setLength(0);
+            long offset = dataStart + (long) index.capacity();
+            randomAccessFile.seek(offset);
+            for (long key : tiles) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException();
+                }
+                byte[] bytes = tileStore.read((int) (key >>> 40), (int) (key >>> 20) & 0xFFFFF, (int) key & 0xFFFFF);
+                if (bytes == null) {
+                    continue;
+                }
+                if (offset + bytes.length > Integer.MAX_VALUE) {
+                    throw new IOException("pack is larger than 2 GB");
+                }
+                randomAccessFile.write(bytes);
+                index.putLong(key).putInt((int) offset).putInt(bytes.length);
+                offset += bytes.length;
+                count++;
+            }
+            randomAccessFile.seek(0);
+            randomAccessFile.writeInt(magic);
+            randomAccessFile.writeInt(count);
+            randomAccessFile.writeInt(propertiesBytes.length);
+            randomAccessFile.write(propertiesBytes);
+            randomAccessFile.write(index.array(), 0, index.position()); // unused entries remain before the tiles
+        } finally {
+            if (randomAccessFile != null) {
+                try {
+                    randomAccessFile.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return count;
+    }
+
+
+    @Override
+    public boolean contains(int z, int y, int x) {
+        return find(z, y, x) >= 0;
+    }
+
+    @Override
+    public byte[] read(int z, int y, int x) {
+        ByteBuffer tile = getTile(z, y, x);
+        if (tile == null) {
+            return null;
+        }
+        byte[] bytes = new byte[tile.remaining()];
+        tile.get(bytes);
+        return bytes;
+    }
+
+    @Override
+    public InputStream open(int z, int y, int x) {
+        ByteBuffer tile = getTile(z, y, x);
+        return tile == null ? null : new TileStream(tile);
+    }
+
+    @Override
+    public long getLength(int z, int y, int x) {
+        int entry = find(z, y, x);
+        return entry < 0 ? -1 : buffer.getInt(entry + 12);
+    }
+
+    @Override
+    public long getTime(int z, int y, int x) {
+        return 0;
+    }
+
+    @Override
+    public String getPath(int z, int y, int x) {
+        return null;
+    }
+
+    @Override
+    public long getContentId(int z, int y, int x) {
+        return 0;
+    }
+
+    @Override
+    public void save(byte[] tileBytes, int length, int z, int y, int x, String extension) throws IOException {
+        throw new IOException("pack is read-only");
+    }
+
+
+    String getProperties() {
+        return properties;
+    }
+
+
+    // returns position of the index entry or -1
+    private int find(int z, int y, int x) {
+        if (buffer == null) {
+            return -1;
+        }
+        long key = ((long) z << 40) | ((long) y << 20) | x;
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long middleKey = buffer.getLong(indexStart + middle * entryBytes);
+            if (middleKey < key) {
+                low = middle + 1;
+            } else if (middleKey > key) {
+                high = middle - 1;
+            } else {
+                int entry = indexStart + middle * entryBytes;
+                int offset = buffer.getInt(entry + 8);
+                int length = buffer.getInt(entry + 12);
+                if (offset < 0 || length < 0 || (long) offset + length > buffer.capacity()) {
+                    Files.getInstance().logOnce("PackStore.find", "tile " + z + "/" + y + "/" + x + " is outside");
+                    return -1;
+                }
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    // returns mapped bytes of the tile or null
+    private ByteBuffer getTile(int z, int y, int x) {
+        int entry = find(z, y, x);
+        if (entry < 0) {
+            return null;
+        }
+        int offset = buffer.getInt(entry + 8);
+        ByteBuffer tile = buffer.duplicate(); // own position and limit for this thread
+        tile.limit(offset + buffer.getInt(entry + 12));
+        tile.position(offset);
+        return tile;
+    }
+
+
+    // reads mapped bytes without copying them in the heap
+    private static class TileStream extends InputStream {
+        private final ByteBuffer tile;
+
+        private TileStream(ByteBuffer tile) {
+            this.tile = tile;
+        }
+
+
+        @Override
+        public int read() {
+            return tile.hasRemaining() ? tile.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!tile.hasRemaining()) {
+                return -1;
+            }
+            length = Math.min(length, tile.remaining());
+            tile.get(bytes, offset, length);
+            return length;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, tile.remaining()));
+            tile.position(tile.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return tile.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            tile.mark();
+        }
+
+        @Override
+        public synchronized void reset() {
+            tile.reset();
+        }
+    }
+}
@@ -0,0 +1,760 @@
+/*
+tiles of one map in append-only segment files instead of millions of separate files, thread-safe
+
+files:
+mapName/
+ segments/
+  0.seg               // records one after another, the next segment is started after maxSegmentBytes
+  1.seg
+  index               // saved index with times, records after the saved position are indexed from the segments
+
+record: int magic, byte z, byte format, int y, int x, long time, int length, tile bytes
+time is the time of saving or of the last use, deleted tile is a record of the format 'deleted' without bytes
+index in memory is an open addressing hash table of longs, tile key -> segment, offset, length, format, time
+time of the last use is kept in the index for forEach() and written in the header for the full scan
+replaced records are garbage, full segment with less than half of live bytes is copied to the end and deleted
+records of deleted tiles are copied too, while the older segment can contain the deleted record
+tiles saved as separate files before enabling segments are read from the map folder, deleted when saved again
+ */
+package com.aqoleg.cat.data;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+class SegmentStore implements EvictableStore {
+    static final String dirName = "segments";
+    private static final String segmentExtension = ".seg";
+    private static final String indexFileName = "index";
+    private static final String[] formats = {"png", "jpeg", "webp"}; // number of the format in the record
+    private static final int deleted = 3; // format of the record of the deleted tile
+    private static final int magic = 0x63617421; // cat!
+    private static final int indexMagic = 0x63617432; // cat2, index with times
+    private static final int headerBytes = 26;
+    private static final int timeOffset = 14; // in the header
+    private static final long maxSegmentBytes = 1 << 25;
+    private static final int maxTileBytes = (1 << 20) - 1;
+    private static final int maxSegment = (1 << 16) - 1;
+    private static final long empty = -1; // key of the empty slot
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(); // compaction, saving index
+
+    private final File dir;
+    private final DirectoryStore files; // tiles saved before enabling segments
+    // synchronized
+    private final HashMap<Integer, FileChannel> channels = new HashMap<>(); // segment - opened file
+    private final HashMap<Integer, Long> liveBytes = new HashMap<>(); // segment - bytes of indexed records
+    private final HashSet<Integer> compacting = new HashSet<>(); // queued segments
+    private long[] keys; // tile key or empty
+    private long[] values; // packed location of the record
+    private int[] times; // s of the last use
+    private int count;
+    private int segment; // current segment to append
+    private long position; // end of the current segment
+    private int unsaved; // records after the saved index
+    private boolean savingIndex;
+
+    SegmentStore(File mapDir) {
+        dir = new File(mapDir, dirName);
+        files = new DirectoryStore(mapDir);
+        keys = new long[1024];
+        values = new long[keys.length];
+        times = new int[keys.length];
+        Arrays.fill(keys, empty);
+        open();
+    }
+
+
+    @Override
+    public boolean contains(int z, int y, int x) {
+        synchronized (this) {
+            if (get(key(z, y, x)) != empty) {
+                return true;
+            }
+        }
+        return files.contains(z, y, x);
+    }
+
+    @Override
+    public byte[] read(int z, int y, int x) throws IOException {
+        ByteBuffer buffer = readRecord(key(z, y, x), headerBytes, -1);
+        return buffer == null ? files.read(z, y, x) : buffer.array();
+    }
+
+    @Override
+    public InputStream open(int z, int y, int x) throws IOException {
+        byte[] bytes = read(z, y, x);
+        return bytes == null ? null : new ByteArrayInputStream(bytes);
+    }
+
+    @Override
+    public long getLength(int z, int y, int x) {
+        synchronized (this) {
+            long value = get(key(z, y, x));
+            if (value != empty) {
+                return lengthOf(value);
+            }
+        }
+        return files.getLength(z, y, x);
+    }
+
+    @Override
+    public long getTime(int z, int y, int x) {
+        synchronized (this) {
+            long key = key(z, y, x);
+            if (get(key) != empty) {
+                return getTime(key);
+            }
+        }
+        return files.getTime(z, y, x);
+    }
+
+    @Override
+    public String getPath(int z, int y, int x) {
+        synchronized (this) {
+            if (get(key(z, y, x)) != empty) {
+                return null;
+            }
+        }
+        return files.getPath(z, y, x);
+    }
+
+    @Override
+    public long getContentId(int z, int y, int x) {
+        synchronized (this) {
+            if (get(key(z, y, x)) != empty) {
+                return 0;
+            }
+        }
+        return files.getContentId(z, y, x);
+    }
+
+    @Override
+    public void save(byte[] tileBytes, int length, int z, int y, int x, String extension) throws IOException {
+        int format = Arrays.asList(formats).indexOf(extension);
+        if (format < 0 || length > maxTileBytes) {
+            throw new IOException("cannot save " + extension + " tile of " + length + " bytes");
+        }
+        ByteBuffer header = ByteBuffer.allocate(headerBytes);
+        header.putInt(magic).put((byte) z).put((byte) format).putInt(y).putInt(x);
+        header.putLong(System.currentTimeMillis()).putInt(length);
+        header.flip();
+        append(key(z, y, x), format, header, ByteBuffer.wrap(tileBytes, 0, length)); // tile bytes are not copied
+        if (files.contains(z, y, x)) { // older copy saved before enabling segments
+            files.delete(z, y, x);
+        }
+    }
+
+    @Override
+    public synchronized boolean touch(int z, int y, int x, long time) {
+        long key = key(z, y, x);
+        long value = get(key);
+        if (value == empty) {
+            return files.touch(z, y, x, time);
+        }
+        setTime(key, time);
+        countUnsaved();
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.putLong(time).flip();
+        try {
+            FileChannel channel = getChannel(segmentOf(value));
+            long position = offsetOf(value) + timeOffset;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        } catch (IOException e) {
+            Files.getInstance().logOnce("SegmentStore.touch", "cannot write " + dir.getAbsolutePath() + ": " + e);
+        }
+        return true;
+    }
+
+    @Override
+    public void saveUsed(long[] keys, int count, long time) {
+        files.saveUsed(keys, count, time);
+    }
+
+    @Override
+    public void forEach(Files.TileVisitor visitor) {
+        long[] tileKeys;
+        int[] lengths;
+        int[] tileTimes;
+        synchronized (this) {
+            tileKeys = new long[count];
+            lengths = new int[count];
+            tileTimes = new int[count];
+            int n = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != empty) {
+                    tileKeys[n] = keys[i];
+                    tileTimes[n] = times[i];
+                    lengths[n++] = lengthOf(values[i]);
+                }
+            }
+        }
+        for (int i = 0; i < tileKeys.length; i++) {
+            int z = (int) (tileKeys[i] >>> 40);
+            int y = (int) (tileKeys[i] >>> 20) & 0xFFFFF;
+            int x = (int) tileKeys[i] & 0xFFFFF;
+            visitor.visit(z, y, x, lengths[i], (tileTimes[i] & 0xFFFFFFFFL) * 1000);
+        }
+        files.forEach(visitor);
+    }
+
+    @Override
+    public void delete(int z, int y, int x) throws IOException {
+        long key = key(z, y, x);
+        synchronized (this) {
+            long value = get(key);
+            if (value == empty) {
+                files.delete(z, y, x);
+                return;
+            }
+            ByteBuffer record = ByteBuffer.allocate(headerBytes);
+            record.putInt(magic).put((byte) z).put((byte) deleted).putInt(y).putInt(x);
+            record.putLong(System.currentTimeMillis()).putInt(0);
+            record.flip();
+            append(key, deleted, record);
+        }
+    }
+
+
+    // reads saved index and indexes records after it, truncates the broken end of the segment
+    private synchronized void open() {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Files.getInstance().log("cannot create " + dir.getAbsolutePath());
+        }
+        ArrayList<Integer> numbers = new ArrayList<>();
+        BitSet existing = new BitSet();
+        String[] list = dir.list();
+        if (list != null) {
+            for (String name : list) {
+                if (name.endsWith(segmentExtension)) {
+                    try {
+                        int number = Integer.parseInt(name.substring(0, name.length() - segmentExtension.length()));
+                        numbers.add(number);
+                        existing.set(number);
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+        }
+        Collections.sort(numbers);
+        int savedSegment = 0;
+        long savedPosition = 0;
+        File indexFile = new File(dir, indexFileName);
+        if (indexFile.isFile()) {
+            DataInputStream stream = null;
+            try {
+                stream = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+                if (stream.readInt() != indexMagic) {
+                    throw new IOException("unknown format"); // or older index without times, segments are scanned
+                }
+                savedSegment = stream.readInt();
+                savedPosition = stream.readLong();
+                for (int i = stream.readInt(); i > 0; i--) {
+                    long key = stream.readLong();
+                    long value = stream.readLong();
+                    int time = stream.readInt();
+                    if (existing.get(segmentOf(value))) {
+                        put(key, value, time);
+                    }
+                }
+            } catch (IOException e) {
+                Files.getInstance().log("cannot read " + indexFile.getAbsolutePath() + ": " + e);
+                Arrays.fill(keys, empty);
+                count = 0;
+                savedSegment = 0;
+                savedPosition = 0;
+            } finally {
+                if (stream != null) {
+                    try {
+                        stream.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+        for (int number : numbers) {
+            try {
+                FileChannel channel = openChannel(number);
+                channels.put(number, channel);
+                segment = number;
+                if (number < savedSegment) {
+                    position = channel.size();
+                } else {
+                    position = scan(number, channel, number == savedSegment ? savedPosition : 0);
+                }
+            } catch (IOException e) {
+                Files.getInstance().log("cannot open segment " + number + " in " + dir.getAbsolutePath() + ": " + e);
+            }
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != empty) {
+                addLiveBytes(segmentOf(values[i]), headerBytes + lengthOf(values[i]));
+            }
+        }
+        for (int number : numbers) {
+            checkGarbage(number);
+        }
+    }
+
+    // indexes records from the position, truncates the broken end, returns the end of the segment
+    private long scan(int number, FileChannel channel, long position) throws IOException {
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(headerBytes);
+        while (position + headerBytes <= size) {
+            header.clear();
+            readFully(channel, header, position);
+            header.flip();
+            int recordMagic = header.getInt();
+            int z = header.get();
+            int format = header.get();
+            int y = header.getInt();
+            int x = header.getInt();
+            long time = header.getLong();
+            int length = header.getInt();
+            if (recordMagic != magic || length < 0 || length > maxTileBytes || position + headerBytes + length > size) {
+                break;
+            }
+            if (format == deleted) {
+                remove(key(z, y, x));
+            } else if (format >= 0 && format < formats.length) {
+                put(key(z, y, x), pack(number, position, length, format), seconds(time));
+            } else {
+                break;
+            }
+            unsaved++;
+            position += headerBytes + length;
+        }
+        if (position < size) {
+            Files.getInstance().log("truncate segment " + number + " in " + dir.getAbsolutePath() + " to " + position);
+            channel.truncate(position);
+        }
+        return position;
+    }
+
+    // returns part of the record or null if there is no such tile, length - bytes to read or -1 to read the tile
+    private ByteBuffer readRecord(long key, int offset, int length) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            long value;
+            FileChannel channel;
+            synchronized (this) {
+                value = get(key);
+                if (value == empty) {
+                    return null;
+                }
+                channel = getChannel(segmentOf(value));
+            }
+            if (channel == null) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(length < 0 ? lengthOf(value) : length);
+            try {
+                readFully(channel, buffer, offsetOf(value) + offset);
+                buffer.flip();
+                return buffer;
+            } catch (ClosedChannelException e) {
+                // closed by the interrupt of another reading thread or deleted after compaction, try again
+                if (attempt > 0 || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    // writes the record in the end of the current segment and indexes it or removes the deleted tile from the index
+    // record - header and tile bytes in one or more buffers
+    private synchronized void append(long key, int format, ByteBuffer... record) throws IOException {
+        int recordBytes = 0;
+        for (ByteBuffer buffer : record) {
+            recordBytes += buffer.remaining();
+        }
+        int length = recordBytes - headerBytes;
+        if (position > 0 && position + recordBytes > maxSegmentBytes) {
+            if (segment == maxSegment) {
+                throw new IOException("too many segments in " + dir.getAbsolutePath());
+            }
+            int full = segment;
+            channels.put(segment + 1, openChannel(segment + 1));
+            segment++;
+            position = 0;
+            checkGarbage(full);
+        }
+        FileChannel channel = getChannel(segment);
+        if (channel == null) { // the first segment
+            channel = openChannel(segment);
+            channels.put(segment, channel);
+        }
+        long end = position;
+        try {
+            for (ByteBuffer buffer : record) {
+                while (buffer.hasRemaining()) {
+                    end += channel.write(buffer, end);
+                }
+            }
+        } catch (IOException e) {
+            try {
+                channel.truncate(position);
+            } catch (IOException ignored) {
+            }
+            throw e;
+        }
+        long old;
+        if (format == deleted) {
+            old = remove(key);
+        } else {
+            old = put(key, pack(segment, position, length, format), seconds(record[0].getLong(timeOffset)));
+            addLiveBytes(segment, headerBytes + length);
+        }
+        position = end;
+        if (old != empty) {
+            addLiveBytes(segmentOf(old), -headerBytes - lengthOf(old));
+            checkGarbage(segmentOf(old));
+        }
+        countUnsaved();
+    }
+
+    // saves index in the background after many changes
+    private synchronized void countUnsaved() {
+        if (++unsaved > count / 8 + 1024 && !savingIndex) {
+            savingIndex = true;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    saveIndex();
+                }
+            });
+        }
+    }
+
+    // queues compaction of the full segment with less than half of live bytes
+    private synchronized void checkGarbage(int number) {
+        if (number == segment || compacting.contains(number)) {
+            return;
+        }
+        long size;
+        try {
+            FileChannel channel = getChannel(number);
+            if (channel == null) {
+                return;
+            }
+            size = channel.size();
+        } catch (IOException e) {
+            return;
+        }
+        Long live = liveBytes.get(number);
+        if (live != null && live * 2 >= size) {
+            return;
+        }
+        compacting.add(number);
+        final int compacted = number;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                compact(compacted);
+            }
+        });
+    }
+
+    // copies indexed records of the segment to the end and deletes the segment
+    // copies records of deleted tiles, if there are older segments, the full scan must not index deleted tiles again
+    private void compact(int number) {
+        try {
+            ArrayList<Long> tileKeys = new ArrayList<>();
+            boolean hasOlder = false;
+            synchronized (this) {
+                for (int i = 0; i < keys.length; i++) {
+                    if (keys[i] != empty && segmentOf(values[i]) == number) {
+                        tileKeys.add(keys[i]);
+                    }
+                }
+                for (int older : channels.keySet()) {
+                    hasOlder |= older < number;
+                }
+            }
+            ArrayList<ByteBuffer> deletedRecords = hasOlder ? readDeleted(number) : new ArrayList<ByteBuffer>();
+            for (long key : tileKeys) {
+                long value;
+                FileChannel channel;
+                synchronized (this) {
+                    value = get(key);
+                    channel = getChannel(number);
+                }
+                if (value == empty || segmentOf(value) != number) { // has been replaced
+                    continue;
+                }
+                ByteBuffer record = ByteBuffer.allocate(headerBytes + lengthOf(value));
+                try {
+                    readFully(channel, record, offsetOf(value));
+                } catch (ClosedChannelException e) { // closed by the interrupt of a reading thread
+                    record.clear();
+                    synchronized (this) {
+                        channel = getChannel(number);
+                    }
+                    readFully(channel, record, offsetOf(value));
+                }
+                record.flip();
+                synchronized (this) {
+                    if (get(key) == value) { // has not been replaced while reading
+                        record.putLong(timeOffset, getTime(key)); // header can be older, if touch() has failed
+                        append(key, formatOf(value), record);
+                    }
+                }
+            }
+            for (ByteBuffer record : deletedRecords) {
+                long key = key(record.get(4), record.getInt(6), record.getInt(10));
+                synchronized (this) {
+                    if (get(key) == empty) { // has not been saved again
+                        append(key, deleted, record);
+                    }
+                }
+            }
+            FileChannel channel;
+            synchronized (this) {
+                channel = channels.remove(number);
+                liveBytes.remove(number);
+                compacting.remove(number);
+            }
+            channel.close();
+            File file = new File(dir, number + segmentExtension);
+            if (!file.delete()) {
+                Files.getInstance().log("cannot delete " + file.getAbsolutePath());
+            }
+            saveIndex();
+        } catch (Throwable t) {
+            Files.getInstance().log(t);
+        }
+    }
+
+    // returns headers of the records of deleted tiles in the segment
+    private ArrayList<ByteBuffer> readDeleted(int number) throws IOException {
+        ArrayList<ByteBuffer> records = new ArrayList<>();
+        FileChannel channel;
+        synchronized (this) {
+            channel = getChannel(number);
+        }
+        long size = channel.size();
+        long position = 0;
+        while (position + headerBytes <= size) {
+            ByteBuffer header = ByteBuffer.allocate(headerBytes);
+            try {
+                readFully(channel, header, position);
+            } catch (ClosedChannelException e) { // closed by the interrupt of a reading thread
+                header.clear();
+                synchronized (this) {
+                    channel = getChannel(number);
+                }
+                readFully(channel, header, position);
+            }
+            header.flip();
+            int length = header.getInt(headerBytes - 4);
+            if (header.getInt(0) != magic || length < 0 || length > maxTileBytes) {
+                break;
+            }
+            if (header.get(5) == deleted) {
+                records.add(header);
+            }
+            position += headerBytes + length;
+        }
+        return records;
+    }
+
+    // writes index in the temporary file and renames it
+    private synchronized void saveIndex() {
+        savingIndex = false;
+        unsaved = 0;
+        File tmp = new File(dir, indexFileName + ".tmp");
+        DataOutputStream stream = null;
+        try {
+            FileChannel channel = getChannel(segment);
+            if (channel != null) {
+                channel.force(false); // indexed records must be in the storage before the index
+            }
+            stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            stream.writeInt(indexMagic);
+            stream.writeInt(segment);
+            stream.writeLong(position);
+            stream.writeInt(count);
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != empty) {
+                    stream.writeLong(keys[i]);
+                    stream.writeLong(values[i]);
+                    stream.writeInt(times[i]);
+                }
+            }
+            stream.close();
+            stream = null;
+            if (!tmp.renameTo(new File(dir, indexFileName))) {
+                throw new IOException("cannot rename " + tmp.getAbsolutePath());
+            }
+        } catch (IOException e) {
+            Files.getInstance().logOnce("SegmentStore.saveIndex", "cannot save " + tmp.getAbsolutePath() + ": " + e);
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    // returns opened channel of the segment or null, reopens channel closed by the interrupt of a reading thread
+    private synchronized FileChannel getChannel(int number) throws IOException {
+        FileChannel channel = channels.get(number);
+        if (channel != null && !channel.isOpen()) {
+            channel = openChannel(number);
+            channels.put(number, channel);
+        }
+        return channel;
+    }
+
+    private FileChannel openChannel(int number) throws IOException {
+        return new RandomAccessFile(new File(dir, number + segmentExtension), "rw").getChannel();
+    }
+
+    private void addLiveBytes(int number, long bytes) {
+        Long live = liveBytes.get(number);
+        liveBytes.put(number, (live == null ? 0 : live) + bytes);
+    }
+
+    // returns value or empty
+    private long get(long key) {
+        int i = slot(key);
+        while (keys[i] != empty) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+            i = (i + 1) & (keys.length - 1);
+        }
+        return empty;
+    }
+
+    // returns ms of the last use of the indexed tile
+    private long getTime(long key) {
+        int i = slot(key);
+        while (keys[i] != key) {
+            i = (i + 1) & (keys.length - 1);
+        }
+        return (times[i] & 0xFFFFFFFFL) * 1000;
+    }
+
+    // time - ms of the last use of the indexed tile
+    private void setTime(long key, long time) {
+        int i = slot(key);
+        while (keys[i] != key) {
+            i = (i + 1) & (keys.length - 1);
+        }
+        times[i] = seconds(time);
+    }
+
+    // returns old value or empty, time - s
+    private long put(long key, long value, int time) {
+        if ((count + 1) * 4L > keys.length * 3L) {
+            long[] oldKeys = keys;
+            long[] oldValues = values;
+            int[] oldTimes = times;
+            keys = new long[oldKeys.length * 2];
+            values = new long[keys.length];
+            times = new int[keys.length];
+            Arrays.fill(keys, empty);
+            count = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != empty) {
+                    put(oldKeys[i], oldValues[i], oldTimes[i]);
+                }
+            }
+        }
+        int i = slot(key);
+        while (keys[i] != empty) {
+            if (keys[i] == key) {
+                long old = values[i];
+                values[i] = value;
+                times[i] = time;
+                return old;
+            }
+            i = (i + 1) & (keys.length - 1);
+        }
+        keys[i] = key;
+        values[i] = value;
+        times[i] = time;
+        count++;
+        return empty;
+    }
+
+    // returns removed value or empty
+    private long remove(long key) {
+        int mask = keys.length - 1;
+        int i = slot(key);
+        while (keys[i] != key) {
+            if (keys[i] == empty) {
+                return empty;
+            }
+            i = (i + 1) & mask;
+        }
+        long old = values[i];
+        // moves the next entries of the cluster in the free slot, if it is between their slot and position
+        int j = (i + 1) & mask;
+        while (keys[j] != empty) {
+            int k = slot(keys[j]);
+            if (j > i ? (k <= i || k > j) : (k <= i && k > j)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                times[i] = times[j];
+                i = j;
+            }
+            j = (j + 1) & mask;
+        }
+        keys[i] = empty;
+        count--;
+        return old;
+    }
+
+    private int slot(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & (keys.length - 1);
+    }
+
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int length = channel.read(buffer, position);
+            if (length < 0) {
+                throw new EOFException();
+            }
+            position += length;
+        }
+    }
+
+    // returns unsigned s of ms
+    private static int seconds(long time) {
+        return (int) Math.max(0, time / 1000);
+    }
+
+    private static long key(int z, int y, int x) {
+        return ((long) z << 40) | ((long) y << 20) | x;
+    }
+
+    // 16 bits segment, 26 bits offset of the record, 20 bits length of the tile, 2 bits format
+    private static long pack(int segment, long offset, int length, int format) {
+        return ((long) segment << 48) | (offset << 22) | ((long) length << 2) | format;
+    }
+
+    private static int segmentOf(long value) {
+        return (int) (value >>> 48);
+    }
+
+    private static long offsetOf(long value) {
+        return (value >>> 22) & ((1 << 26) - 1);
+    }
+
+    private static int lengthOf(long value) {
+        return (int) (value >>> 2) & maxTileBytes;
+    }
+
+    private static int formatOf(long value) {
+        return (int) value & 0b11;
+    }
+}
@@ -0,0 +1,34 @@
+/*
+saved tiles of one map, thread-safe
+ */
+package com.aqoleg.cat.data;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+interface TileStore {
+    // returns true if tile is saved
+    boolean contains(int z, int y, int x);
+
+    // returns bytes of the saved tile or null
+    byte[] read(int z, int y, int x) throws IOException;
+
+    // returns stream of the saved tile or null, stream is in memory, supports mark() and does not need to be closed
+    InputStream open(int z, int y, int x) throws IOException;
+
+    // returns size of the saved tile in bytes or -1 if there is no such tile
+    long getLength(int z, int y, int x);
+
+    // returns unix time in ms of saving the tile or 0 if there is no such tile
+    long getTime(int z, int y, int x);
+
+    // returns absolute path of the saved tile or null if there is no such tile or it is not a separate file
+    String getPath(int z, int y, int x);
+
+    // returns id of the bytes shared with other identical tiles or 0 if the tile is not shared
+    long getContentId(int z, int y, int x);
+
+    // saves or replaces tile from the first length bytes, extension 'jpeg', 'png' or 'webp'
+    // tileBytes can be reused after return
+    void save(byte[] tileBytes, int length, int z, int y, int x, String extension) throws IOException;
+}
@@ -135,6 +135,21 @@ public class Track {
         return ellipsoid ? yEllipsoid[0] : ySpherical[0];
     }
 
+    // returns number of points and segment delimiters, does not use iterator, so can be used in other threads
+    public int getLength() {
+        return length;
+    }
+
+    // returns x of the point with this index, NaN for segment delimiter
+    public double getX(int index) {
+        return x[index];
+    }
+
+    // returns y of the point with this index, NaN for segment delimiter
+    public double getY(int index, boolean ellipsoid) {
+        return ellipsoid ? yEllipsoid[index] : ySpherical[index];
+    }
+
     // returns true if boundaries contain this track
     public boolean contains(ActivityView.Boundaries boundaries, boolean ellipsoid) {
         double d;
@@ -10,6 +10,9 @@ parses uri from intent
   adds new map:
    newMap=newMapName&newUrl=urlToDownloadNewMap&newProjection=ellipsoid&
    newMap=map&newUrl=https%3A%2F%2Fcat.aqoleg.com%2Fmaps%2Fn%2F%253%24d%2F%252%24d%2F%251%24d.png&
+   newMap=map&newUrl=https%3A%2F%2Fcat.aqoleg.com%2Fmaps%2Fn%2F%7Bz%7D%2F%7By%7D%2F%7Bx%7D.png&
+   newMap=bing&newUrl=https%3A%2F%2Fecn.t0.tiles.virtualearth.net%2Ftiles%2Fa%7Bq%7D.jpeg%3Fg%3D1&
+   url is the template of UrlTemplate
   selects map:
    map=mapName&
   selects zoom:
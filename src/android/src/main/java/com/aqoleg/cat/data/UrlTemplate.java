@@ -0,0 +1,181 @@
+/*
+url of the tile on one endpoint, parsed once, thread-safe
+expanded in the reusable StringBuilder of the thread
+
+template:
+ {x}, {y}, {z} - tile numbers
+ {-y} - y from the bottom, 2^z - 1 - y, as in tms
+ {q} - quadkey, as in bing: "" for z = 0, then one digit 0-3 for each zoom, 1 and 3 for the right half
+ {z+1}, {x-2}, {-y+1} - the number with the offset
+ %1$d - x, %2$d - y, %3$d - z, as in String.format(), for the old maps
+ %% - '%'
+ {s} - subdomain, the template is one endpoint for each subdomain:
+  "https://{s}.tile.example/{z}/{x}/{y}.png" with subdomains "abc" is a.tile.example, b.tile.example, c.tile.example
+ */
+package com.aqoleg.cat.data;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+
+class UrlTemplate {
+    private static final int x = 1;
+    private static final int y = 2;
+    private static final int z = 3;
+    private static final int tmsY = 4;
+    private static final int quadkey = 5;
+    private static final ThreadLocal<StringBuilder> builders = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(128);
+        }
+    };
+
+    final String host;
+    private final String template;
+    private final String[] literals; // literals[i] before variables[i], the last one after all variables
+    private final int[] variables;
+    private final int[] offsets; // added to variables[i]
+
+    private UrlTemplate(String template) throws MalformedURLException {
+        this.template = template;
+        ArrayList<String> literals = new ArrayList<>();
+        ArrayList<Integer> variables = new ArrayList<>();
+        ArrayList<Integer> offsets = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < template.length()) {
+            char c = template.charAt(i);
+            if (c == '{') {
+                int end = template.indexOf('}', i);
+                if (end < 0) {
+                    throw new MalformedURLException("unclosed variable at " + i + " in " + template);
+                }
+                literals.add(literal.toString());
+                literal.setLength(0);
+                parseVariable(template.substring(i + 1, end), variables, offsets);
+                i = end + 1;
+            } else if (c != '%') {
+                literal.append(c);
+                i++;
+            } else if (template.startsWith("%%", i)) {
+                literal.append('%');
+                i += 2;
+            } else if (template.startsWith("$d", i + 2) && template.charAt(i + 1) >= '1'
+                    && template.charAt(i + 1) <= '3') {
+                literals.add(literal.toString());
+                literal.setLength(0);
+                variables.add(template.charAt(i + 1) - '0');
+                offsets.add(0);
+                i += 4;
+            } else {
+                throw new MalformedURLException("unsupported variable at " + i + " in " + template);
+            }
+        }
+        literals.add(literal.toString());
+        this.literals = literals.toArray(new String[literals.size()]);
+        this.variables = new int[variables.size()];
+        this.offsets = new int[variables.size()];
+        for (i = 0; i < this.variables.length; i++) {
+            this.variables[i] = variables.get(i);
+            this.offsets[i] = offsets.get(i);
+        }
+        host = new URL(expand(0, 0, 0)).getHost();
+    }
+
+
+    // returns one template for each endpoint, subdomains - characters for {s}
+    static UrlTemplate[] parse(String template, String subdomains) throws MalformedURLException {
+        if (template == null) {
+            throw new MalformedURLException("no url");
+        }
+        if (!template.contains("{s}")) {
+            return new UrlTemplate[]{new UrlTemplate(template)};
+        }
+        if (subdomains == null || subdomains.isEmpty()) {
+            throw new MalformedURLException("no subdomains for " + template);
+        }
+        UrlTemplate[] templates = new UrlTemplate[subdomains.length()];
+        for (int i = 0; i < templates.length; i++) {
+            templates[i] = new UrlTemplate(template.replace("{s}", String.valueOf(subdomains.charAt(i))));
+        }
+        return templates;
+    }
+
+
+    String expand(int z, int y, int x) {
+        StringBuilder builder = builders.get();
+        builder.setLength(0);
+        builder.append(literals[0]);
+        for (int i = 0; i < variables.length; i++) {
+            switch (variables[i]) {
+                case UrlTemplate.x:
+                    builder.append(x + offsets[i]);
+                    break;
+                case UrlTemplate.y:
+                    builder.append(y + offsets[i]);
+                    break;
+                case UrlTemplate.z:
+                    builder.append(z + offsets[i]);
+                    break;
+                case tmsY:
+                    builder.append((1 << z) - 1 - y + offsets[i]);
+                    break;
+                case quadkey:
+                    for (int bit = z - 1; bit >= 0; bit--) {
+                        builder.append((char) ('0' + ((x >> bit) & 1) + (((y >> bit) & 1) << 1)));
+                    }
+                    break;
+            }
+            builder.append(literals[i + 1]);
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public String toString() {
+        return template;
+    }
+
+
+    // adds variable and offset, variable - text between braces, for example "-y+1"
+    private static void parseVariable(
+            String variable,
+            ArrayList<Integer> variables,
+            ArrayList<Integer> offsets
+    ) throws MalformedURLException {
+        int type;
+        String offset;
+        if (variable.startsWith("-y")) {
+            type = tmsY;
+            offset = variable.substring(2);
+        } else if (variable.startsWith("x")) {
+            type = x;
+            offset = variable.substring(1);
+        } else if (variable.startsWith("y")) {
+            type = y;
+            offset = variable.substring(1);
+        } else if (variable.startsWith("z")) {
+            type = z;
+            offset = variable.substring(1);
+        } else if (variable.equals("q")) {
+            type = quadkey;
+            offset = "";
+        } else {
+            throw new MalformedURLException("unknown variable {" + variable + "}");
+        }
+        variables.add(type);
+        if (offset.isEmpty()) {
+            offsets.add(0);
+            return;
+        }
+        if (offset.charAt(0) != '+' && offset.charAt(0) != '-') {
+            throw new MalformedURLException("unknown variable {" + variable + "}");
+        }
+        try {
+            offsets.add(Integer.parseInt(offset.charAt(0) == '+' ? offset.substring(1) : offset));
+        } catch (NumberFormatException e) {
+            throw new MalformedURLException("incorrect offset in {" + variable + "}");
+        }
+    }
+}
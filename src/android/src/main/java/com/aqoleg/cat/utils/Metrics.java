@@ -0,0 +1,145 @@
+/*
+counters and histograms of the tile pipeline since the app launch, thread-safe, cheap enough to be always on
+counter is one atomic long, histogram counts values in buckets of powers of 2: 0, 1, 2-3, 4-7, ... 2^30 and more
+percentiles of the histogram are upper bounds of the buckets
+ */
+package com.aqoleg.cat.utils;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class Metrics {
+    // counters
+    public static final int memoryHits = 0; // tile is in the cache
+    public static final int memoryMisses = 1;
+    public static final int diskHits = 2; // tile is read from the storage
+    public static final int diskMisses = 3;
+    public static final int fallbacks = 4; // tile is decoded from the lower zoom
+    public static final int downloads = 5;
+    public static final int notModified = 6;
+    public static final int downloadFailures = 7;
+    public static final int downloadedBytes = 8;
+    public static final int cacheEvictions = 9; // tiles removed from the memory cache
+    public static final int tileEvictions = 10; // saved tiles deleted over the quota
+    public static final int evictedBytes = 11;
+    public static final int trackHits = 12; // track is in the cache
+    public static final int trackMisses = 13;
+    // histograms
+    public static final int fallbackDepth = 0; // zooms from the requested tile
+    public static final int decodeMs = 1;
+    public static final int readMs = 2; // of the saved tile
+    public static final int saveMs = 3;
+    public static final int downloadMs = 4;
+    public static final int trackLoadMs = 5;
+    public static final int readQueue = 6; // tiles waiting for readers, each pass
+    public static final int downloadQueue = 7; // queued and running requests, each pass
+
+    private static final String[] counterNames = {
+            "memory hits",
+            "memory misses",
+            "disk hits",
+            "disk misses",
+            "fallbacks",
+            "downloads",
+            "not modified",
+            "download failures",
+            "downloaded bytes",
+            "cache evictions",
+            "tile evictions",
+            "evicted bytes",
+            "track hits",
+            "track misses"
+    };
+    private static final String[] histogramNames = {
+            "fallback depth",
+            "decode ms",
+            "read ms",
+            "save ms",
+            "download ms",
+            "track load ms",
+            "read queue",
+            "download queue"
+    };
+    private static final int buckets = 32;
+
+    private static final AtomicLongArray counters = new AtomicLongArray(counterNames.length);
+    private static final AtomicLongArray histograms = new AtomicLongArray(histogramNames.length * buckets);
+    private static final AtomicLongArray sums = new AtomicLongArray(histogramNames.length);
+
+    private Metrics() {
+    }
+
+
+    public static void count(int counter) {
+        counters.incrementAndGet(counter);
+    }
+
+    public static void add(int counter, long value) {
+        counters.addAndGet(counter, value);
+    }
+
+    public static void record(int histogram, long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        int bucket = Math.min(buckets - 1, 64 - Long.numberOfLeadingZeros(value)); // 0, 1, 2-3, 4-7, ...
+        histograms.incrementAndGet(histogram * buckets + bucket);
+        sums.addAndGet(histogram, value);
+    }
+
+    // records ms since startNs, startNs - System.nanoTime() at the start
+    public static void recordSince(int histogram, long startNs) {
+        record(histogram, (System.nanoTime() - startNs) / 1000000);
+    }
+
+    // returns one line for each counter and each histogram
+    public static String toText() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < counterNames.length; i++) {
+            builder.append(counterNames[i]).append(' ').append(counters.get(i)).append('\n');
+        }
+        long memoryRequests = counters.get(memoryHits) + counters.get(memoryMisses);
+        if (memoryRequests > 0) {
+            builder.append(String.format(
+                    Locale.ENGLISH,
+                    "memory hit rate %1$.1f%%\n",
+                    counters.get(memoryHits) * 100f / memoryRequests
+            ));
+        }
+        long[] counts = new long[buckets];
+        for (int i = 0; i < histogramNames.length; i++) {
+            long count = 0;
+            for (int bucket = 0; bucket < buckets; bucket++) {
+                counts[bucket] = histograms.get(i * buckets + bucket);
+                count += counts[bucket];
+            }
+            builder.append(histogramNames[i]).append(' ').append(count);
+            if (count > 0) {
+                builder.append(String.format(
+                        Locale.ENGLISH,
+                        ", avg %1$.1f, p50 %2$d, p95 %3$d, max %4$d",
+                        sums.get(i) / (float) count,
+                        getPercentile(counts, count, 50),
+                        getPercentile(counts, count, 95),
+                        getPercentile(counts, count, 100)
+                ));
+            }
+            builder.append('\n');
+        }
+        return builder.toString();
+    }
+
+
+    // returns the upper bound of the bucket with this percentile of values
+    private static long getPercentile(long[] counts, long count, int percentile) {
+        long rank = (count * percentile + 99) / 100;
+        long seen = 0;
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            seen += counts[bucket];
+            if (seen >= rank) {
+                return bucket == 0 ? 0 : (1L << bucket) - 1;
+            }
+        }
+        return (1L << (counts.length - 1)) - 1;
+    }
+}